@@ -0,0 +1,88 @@
+package com.scarlatti;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * ______    __                         __           ____             __     __  __  _
+ * ___/ _ | / /__ ___ ___ ___ ____  ___/ /______    / __/______ _____/ /__ _/ /_/ /_(_)
+ * __/ __ |/ / -_|_-<(_-</ _ `/ _ \/ _  / __/ _ \  _\ \/ __/ _ `/ __/ / _ `/ __/ __/ /
+ * /_/ |_/_/\__/___/___/\_,_/_//_/\_,_/_/  \___/ /___/\__/\_,_/_/ /_/\_,_/\__/\__/_/
+ * Saturday, 10/17/2026
+ *
+ * Generates the properties files the benchmarks read and write.
+ */
+class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    static String key(int i) {
+        return "benchmark.property." + i;
+    }
+
+    static boolean isSecret(int i, double secretRatio) {
+        // spread the secrets evenly through the file
+        return (int) (i * secretRatio) != (int) ((i + 1) * secretRatio);
+    }
+
+    /**
+     * Write a file with the given number of entries, with secret values Base64 encoded
+     * the way SmartProperties stores them.
+     */
+    static Path write(int entries, double secretRatio) throws IOException {
+        return write(entries, secretRatio, SmartProperties.SecretCodec.BASE64);
+    }
+
+    /**
+     * Write a file with the given number of entries, with secret values encoded by the codec.
+     */
+    static Path write(int entries, double secretRatio, SmartProperties.SecretCodec codec) throws IOException {
+        Path file = Files.createTempFile("smart-properties-benchmark.", ".properties");
+        file.toFile().deleteOnExit();
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.ISO_8859_1)) {
+            writer.write("#Generated for benchmarks\n");
+            for (int i = 0; i < entries; i++) {
+                String value = "value number " + i;
+                if (isSecret(i, secretRatio)) {
+                    value = codec.encode(value.getBytes());
+                }
+                writer.write(key(i) + "=" + value + "\n");
+            }
+        }
+        return file;
+    }
+
+    /**
+     * A builder that declares the secret properties of a generated file.
+     */
+    static SmartProperties.PropertiesBuilder builder(int entries, double secretRatio) {
+        SmartProperties.PropertiesBuilder builder = SmartProperties.get()
+            .noBanner()
+            .promptForMissingProperties(false)
+            .fsyncPolicy(SmartProperties.FsyncPolicy.NONE);
+        for (int i = 0; i < entries; i++) {
+            if (isSecret(i, secretRatio)) {
+                builder.secretProperty(key(i), "secret " + i);
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Keep the messages SmartProperties prints out of the measurements.
+     */
+    static void silenceConsole() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+}
@@ -0,0 +1,82 @@
+package com.scarlatti;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ______    __                         __           ____             __     __  __  _
+ * ___/ _ | / /__ ___ ___ ___ ____  ___/ /______    / __/______ _____/ /__ _/ /_/ /_(_)
+ * __/ __ |/ / -_|_-<(_-</ _ `/ _ \/ _  / __/ _ \  _\ \/ __/ _ `/ __/ / _ `/ __/ __/ /
+ * /_/ |_/_/\__/___/___/\_,_/_//_/\_,_/_/  \___/ /___/\__/\_,_/_/ /_/\_,_/\__/\__/_/
+ * Saturday, 10/17/2026
+ *
+ * Cost of building SmartProperties from a file (startup) and of storing it back,
+ * by file size and share of secret properties.
+ * Stores don't fsync, so disk speed doesn't drown out the cost of writing.
+ * They alternate between two files, since storing unchanged properties
+ * back to the file they were last stored to is skipped; storeUnchanged measures that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadStoreBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    int entries;
+
+    @Param({"0", "0.1", "1"})
+    double secretRatio;
+
+    private Path source;
+    private File[] targets;
+    private int nextTarget;
+    private SmartProperties.PropertiesBuilder builder;
+    private SmartProperties properties;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkFiles.silenceConsole();
+        source = BenchmarkFiles.write(entries, secretRatio);
+        targets = new File[2];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = Files.createTempFile("smart-properties-benchmark.", ".properties").toFile();
+            targets[i].deleteOnExit();
+        }
+        builder = BenchmarkFiles.builder(entries, secretRatio);
+        properties = builder.fromFile(source);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(source);
+        for (File target : targets) {
+            Files.deleteIfExists(target.toPath());
+        }
+    }
+
+    @Benchmark
+    public SmartProperties load() {
+        return builder.fromFile(source);
+    }
+
+    @Benchmark
+    public File store() {
+        File target = targets[nextTarget++ & 1];
+        properties.store(target);
+        return target;
+    }
+
+    @Benchmark
+    public File storeUnchanged() {
+        properties.store(targets[0]);
+        return targets[0];
+    }
+}
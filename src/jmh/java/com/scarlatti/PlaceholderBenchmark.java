@@ -0,0 +1,75 @@
+package com.scarlatti;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ______    __                         __           ____             __     __  __  _
+ * ___/ _ | / /__ ___ ___ ___ ____  ___/ /______    / __/______ _____/ /__ _/ /_/ /_(_)
+ * __/ __ |/ / -_|_-<(_-</ _ `/ _ \/ _  / __/ _ \  _\ \/ __/ _ `/ __/ / _ `/ __/ __/ /
+ * /_/ |_/_/\__/___/___/\_,_/_//_/\_,_/_/  \___/ /___/\__/\_,_/_/ /_/\_,_/\__/\__/_/
+ * Saturday, 10/17/2026
+ *
+ * Cost of resolving placeholders over 10k properties made of reference chains,
+ * from short chains to one chain through every property.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlaceholderBenchmark {
+
+    @Param({"10000"})
+    int entries;
+
+    @Param({"1", "100", "10000"})
+    int chainLength;
+
+    private String text;
+    private SmartProperties properties;
+    private String head;
+    private String tail;
+    private int changes;
+
+    @Setup
+    public void setup() {
+        BenchmarkFiles.silenceConsole();
+        // every chain starts with a plain value; each property refers to the one before it
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < entries; i++) {
+            sb.append(BenchmarkFiles.key(i)).append('=');
+            if (i % chainLength == 0) {
+                sb.append("start");
+            } else {
+                sb.append("${").append(BenchmarkFiles.key(i - 1)).append("}.");
+            }
+            sb.append('\n');
+        }
+        text = sb.toString();
+        properties = load();
+        // change the second to last property of the last chain, so one dependent is resolved again
+        head = BenchmarkFiles.key(Math.max(entries - 2, 0));
+        tail = BenchmarkFiles.key(entries - 1);
+    }
+
+    private SmartProperties load() {
+        SmartProperties properties = new SmartProperties();
+        properties.setDisplayBanner(false);
+        properties.load(text);
+        return properties;
+    }
+
+    @Benchmark
+    public SmartProperties loadAndResolve() {
+        return load();
+    }
+
+    @Benchmark
+    public String changeAndResolveDependents() {
+        properties.setProperty(head, (changes++ & 1) == 0 ? "one" : "two");
+        return properties.getProperty(tail);
+    }
+}
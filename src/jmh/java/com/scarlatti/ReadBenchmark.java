@@ -0,0 +1,121 @@
+package com.scarlatti;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ______    __                         __           ____             __     __  __  _
+ * ___/ _ | / /__ ___ ___ ___ ____  ___/ /______    / __/______ _____/ /__ _/ /_/ /_(_)
+ * __/ __ |/ / -_|_-<(_-</ _ `/ _ \/ _  / __/ _ \  _\ \/ __/ _ `/ __/ / _ `/ __/ __/ /
+ * /_/ |_/_/\__/___/___/\_,_/_//_/\_,_/_/  \___/ /___/\__/\_,_/_/ /_/\_,_/\__/\__/_/
+ * Saturday, 10/17/2026
+ *
+ * Cost of reading properties, through getProperty and through a snapshot,
+ * by file size and share of secret properties.
+ * Run with -t to see how reads scale with threads, e.g. -t 1, -t 4, -t 16, -t 64.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadBenchmark {
+
+    @Param({"1000", "100000"})
+    int entries;
+
+    @Param({"0", "0.1"})
+    double secretRatio;
+
+    private Path source;
+    private File[] targets;
+    private int nextTarget;
+    private String[] keys;
+    private String secretKey;
+    private SmartProperties properties;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkFiles.silenceConsole();
+        source = BenchmarkFiles.write(entries, secretRatio);
+        // stores alternate between two files, so none are skipped as unchanged
+        targets = new File[2];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = Files.createTempFile("smart-properties-benchmark.", ".properties").toFile();
+            targets[i].deleteOnExit();
+        }
+        properties = BenchmarkFiles.builder(entries, secretRatio)
+            .secretProperty("benchmark.secret", "a secret to encode and decode")
+            .fromFile(source);
+        keys = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            keys[i] = BenchmarkFiles.key(i);
+        }
+        secretKey = "benchmark.secret";
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(source);
+        for (File target : targets) {
+            Files.deleteIfExists(target.toPath());
+        }
+    }
+
+    private String nextKey(Cursor cursor) {
+        int i = cursor.next++;
+        if (cursor.next == keys.length) {
+            cursor.next = 0;
+        }
+        return keys[i];
+    }
+
+    @Benchmark
+    public String getProperty(Cursor cursor) {
+        return properties.getProperty(nextKey(cursor));
+    }
+
+    @Benchmark
+    public String snapshotGetProperty(Cursor cursor) {
+        return properties.snapshot().getProperty(nextKey(cursor));
+    }
+
+    /**
+     * Encode a new secret value and decode it again on the next read.
+     */
+    @Benchmark
+    public String secretRoundTrip(Cursor cursor) {
+        properties.setProperty(secretKey, (cursor.next++ & 1) == 0 ? "one password" : "another password");
+        return properties.getProperty(secretKey);
+    }
+
+    /**
+     * Read latency while another thread keeps storing the file.
+     */
+    @Benchmark
+    @Group("readDuringStore")
+    @GroupThreads(3)
+    public String reader(Cursor cursor) {
+        return properties.getProperty(nextKey(cursor));
+    }
+
+    @Benchmark
+    @Group("readDuringStore")
+    @GroupThreads(1)
+    public File writer() {
+        File target = targets[nextTarget++ & 1];
+        properties.store(target);
+        return target;
+    }
+}
@@ -0,0 +1,95 @@
+package com.scarlatti;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ______    __                         __           ____             __     __  __  _
+ * ___/ _ | / /__ ___ ___ ___ ____  ___/ /______    / __/______ _____/ /__ _/ /_/ /_(_)
+ * __/ __ |/ / -_|_-<(_-</ _ `/ _ \/ _  / __/ _ \  _\ \/ __/ _ `/ __/ / _ `/ __/ __/ /
+ * /_/ |_/_/\__/___/___/\_,_/_//_/\_,_/_/  \___/ /___/\__/\_,_/_/ /_/\_,_/\__/\__/_/
+ * Saturday, 10/17/2026
+ *
+ * Throughput of the secret codecs: encoding and decoding one value,
+ * and loading a file of secrets and reading every one of them.
+ * The AES-GCM keys come from a keystore made for the run, or from a passphrase;
+ * either way the key is derived once, in setup, and cached from then on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecretCodecBenchmark {
+
+    @Param({"base64", "aes-gcm-keystore", "aes-gcm-passphrase"})
+    String codec;
+
+    @Param({"500"})
+    int secrets;
+
+    private SmartProperties.SecretCodec secretCodec;
+    private byte[] plain;
+    private String encoded;
+    private Path keyStore;
+    private Path source;
+    private SmartProperties.PropertiesBuilder builder;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkFiles.silenceConsole();
+        keyStore = Files.createTempFile("smart-properties-benchmark.", ".p12");
+        Files.delete(keyStore);
+        secretCodec = codec(codec);
+        plain = "a secret value".getBytes();
+        encoded = secretCodec.encode(plain);
+        source = BenchmarkFiles.write(secrets, 1, secretCodec);
+        builder = BenchmarkFiles.builder(secrets, 1).secretCodec(secretCodec);
+    }
+
+    private SmartProperties.SecretCodec codec(String name) {
+        switch (name) {
+            case "base64":
+                return SmartProperties.SecretCodec.BASE64;
+            case "aes-gcm-keystore":
+                return SmartProperties.AesGcmSecretCodec.createKeyStore(keyStore, "benchmark".toCharArray(), "benchmark");
+            case "aes-gcm-passphrase":
+                return SmartProperties.AesGcmSecretCodec.fromPassphrase("benchmark passphrase".toCharArray());
+            default:
+                throw new IllegalArgumentException("Unknown codec " + name);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(keyStore);
+    }
+
+    @Benchmark
+    public String encode() {
+        return secretCodec.encode(plain);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return secretCodec.decode(encoded);
+    }
+
+    /**
+     * Load a file of secrets and read every one, the way an application starts up.
+     */
+    @Benchmark
+    public void loadAndReadSecrets(Blackhole blackhole) {
+        SmartProperties properties = builder.fromFile(source);
+        for (int i = 0; i < secrets; i++) {
+            blackhole.consume(properties.getProperty(BenchmarkFiles.key(i)));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.scarlatti;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ______    __                         __           ____             __     __  __  _
+ * ___/ _ | / /__ ___ ___ ___ ____  ___/ /______    / __/______ _____/ /__ _/ /_/ /_(_)
+ * __/ __ |/ / -_|_-<(_-</ _ `/ _ \/ _  / __/ _ \  _\ \/ __/ _ `/ __/ / _ `/ __/ __/ /
+ * /_/ |_/_/\__/___/___/\_,_/_//_/\_,_/_/  \___/ /___/\__/\_,_/_/ /_/\_,_/\__/\__/_/
+ * Saturday, 10/17/2026
+ *
+ * Cost of the first fromFile in a fresh JVM, class loading and static initialization included.
+ * Each fork measures a single call. Nothing touches SmartProperties before it,
+ * not even BenchmarkFiles, whose signatures the verifier could load it for.
+ * See {@link StartupFootprint} for the classes loaded and the resident memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+public class StartupBenchmark {
+
+    @Param({"10", "1000"})
+    int entries;
+
+    private Path source;
+
+    @Setup
+    public void setup() throws IOException {
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        source = Files.createTempFile("smart-properties-benchmark.", ".properties");
+        try (Writer writer = Files.newBufferedWriter(source, StandardCharsets.ISO_8859_1)) {
+            for (int i = 0; i < entries; i++) {
+                writer.write("benchmark.property." + i + "=value number " + i + "\n");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(source);
+    }
+
+    @Benchmark
+    public SmartProperties firstLoad() {
+        return SmartProperties.get()
+            .noBanner()
+            .promptForMissingProperties(false)
+            .fromFile(source);
+    }
+}
@@ -0,0 +1,121 @@
+package com.scarlatti;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ______    __                         __           ____             __     __  __  _
+ * ___/ _ | / /__ ___ ___ ___ ____  ___/ /______    / __/______ _____/ /__ _/ /_/ /_(_)
+ * __/ __ |/ / -_|_-<(_-</ _ `/ _ \/ _  / __/ _ \  _\ \/ __/ _ `/ __/ / _ `/ __/ __/ /
+ * /_/ |_/_/\__/___/___/\_,_/_//_/\_,_/_/  \___/ /___/\__/\_,_/_/ /_/\_,_/\__/\__/_/
+ * Saturday, 10/17/2026
+ *
+ * Classes loaded and resident memory of a JVM that loads one properties file,
+ * next to a JVM that only starts up.
+ * Each case runs in its own JVM with -verbose:class, and the loaded classes are counted from its output.
+ * Resident memory is read from /proc/self/status, so it is only reported on Linux.
+ *
+ * <pre>
+ * gradlew startupFootprint
+ * </pre>
+ */
+public class StartupFootprint {
+
+    private static final String EMPTY = "empty";
+    private static final String LOAD = "load";
+    private static final String RSS_PREFIX = "rss: ";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            run(args[0]);
+            return;
+        }
+
+        System.out.println(String.format("%-8s %8s %14s %15s %10s", "case", "classes", "com.scarlatti", "java.awt/swing", "rss"));
+        for (String mode : new String[]{EMPTY, LOAD}) {
+            report(mode);
+        }
+    }
+
+    private static void report(String mode) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-verbose:class");
+        command.add("-Djava.awt.headless=true");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(StartupFootprint.class.getName());
+        command.add(mode);
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        int classes = 0;
+        int ownClasses = 0;
+        int uiClasses = 0;
+        String rss = "n/a";
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // "[Loaded java.lang.Object from ...]" on Java 8, "[0.010s][info][class,load] java.lang.Object source: ..." after
+                if (line.startsWith("[Loaded ") || line.contains("[class,load]")) {
+                    classes++;
+                    if (line.contains(" com.scarlatti.")) {
+                        ownClasses++;
+                    }
+                    if (line.contains(" java.awt.") || line.contains(" javax.swing.")) {
+                        uiClasses++;
+                    }
+                } else if (line.startsWith(RSS_PREFIX)) {
+                    rss = line.substring(RSS_PREFIX.length());
+                }
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Error running the " + mode + " case.");
+        }
+        System.out.println(String.format("%-8s %8d %14d %15d %10s", mode, classes, ownClasses, uiClasses, rss));
+    }
+
+    private static void run(String mode) throws IOException {
+        if (LOAD.equals(mode)) {
+            Path source = Files.createTempFile("smart-properties-benchmark.", ".properties");
+            try {
+                try (Writer writer = Files.newBufferedWriter(source, StandardCharsets.ISO_8859_1)) {
+                    for (int i = 0; i < 1000; i++) {
+                        writer.write("benchmark.property." + i + "=value number " + i + "\n");
+                    }
+                }
+                PrintStream out = System.out;
+                System.setOut(new PrintStream(new ByteArrayOutputStream()));
+                SmartProperties properties = SmartProperties.get()
+                    .noBanner()
+                    .promptForMissingProperties(false)
+                    .fromFile(source);
+                System.setOut(out);
+                if (properties.size() != 1000) {
+                    throw new IllegalStateException("Expected 1000 properties but found " + properties.size() + ".");
+                }
+            } finally {
+                Files.deleteIfExists(source);
+            }
+        }
+        System.out.println(RSS_PREFIX + residentMemory());
+    }
+
+    private static String residentMemory() throws IOException {
+        Path status = Paths.get("/proc/self/status");
+        if (!Files.exists(status)) {
+            return "n/a";
+        }
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return line.substring("VmRSS:".length()).trim();
+            }
+        }
+        return "n/a";
+    }
+}
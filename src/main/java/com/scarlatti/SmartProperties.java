@@ -6,28 +6,69 @@ import javax.swing.border.BevelBorder;
 import javax.swing.border.Border;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableCellEditor;
 import javax.swing.table.TableCellRenderer;
+import javax.swing.table.TableRowSorter;
 import javax.swing.text.DefaultCaret;
 import javax.swing.text.JTextComponent;
 import java.awt.*;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.awt.image.BufferedImage;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import static java.util.Base64.getDecoder;
 import static java.util.Base64.getEncoder;
 import static java.util.stream.Collectors.toList;
-import static javax.swing.JOptionPane.OK_OPTION;
 
 /**
  * ______    __                         __           ____             __     __  __  _
@@ -43,53 +84,112 @@ public class SmartProperties extends Properties {
     // there would be no options for encoding.
     // as far as reading is concerned, the only thing that matters
     // is actually the secret properties.
-    private List<PropertyDef> propertyDefs = new ArrayList<>();
+    private PropertyDefRegistry propertyDefs = PropertyDefRegistry.EMPTY;
     private boolean promptForMissingProperties = true;
+    // prompt for just the missing or invalid properties, and write back only what changed.
+    private boolean promptMissingOnly = false;
     private File file;
     private boolean displayBanner = true;
     private long timeoutMs = 60000L;
-
-    static {
-        try {
-            boolean setLookAndFeel = true;
-            String prop = System.getProperty("smartProperties.setLookAndFeel");
-            if (prop != null) {
-                setLookAndFeel = Boolean.parseBoolean(prop);
-            }
-            if (setLookAndFeel) {
-                String lafClassName = UIManager.getSystemLookAndFeelClassName();
-                if (!UIManager.getLookAndFeel().getClass().getName().equals(lafClassName)) {
-                    UIManager.setLookAndFeel(lafClassName);
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
+    private FileWatcher watcher;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private Executor listenerExecutor;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.FILE;
+    private boolean lockFile = false;
+    // no date header and keys in order, so the same properties always store the same bytes.
+    private boolean deterministic = false;
+    private PromptProvider promptProvider;
+    private SmartPropertiesMetrics metrics = new InMemoryMetrics();
+    // total time spent prompting, so it can be left out of load times
+    private long promptNanos;
+    private int prompts;
+    // the file as it was last read or written, so storing unchanged properties can be skipped
+    private volatile FileStamp synced;
+    // the keys in the backing file as of the last load, reload or store,
+    // so reload() can tell a key removed from the file from one that was never in it
+    private volatile Set<String> fileKeys = Collections.emptySet();
+    private final Map<String, SecretSlot> secretSlots = new ConcurrentHashMap<>();
+    private SecretCodec secretCodec = SecretCodec.BASE64;
+
+    // values from the environment, system properties and command line,
+    // flattened at construction. these win over the file and are never stored.
+    private Map<String, String> overrides = Collections.emptyMap();
+    // where each override and flattened default came from, for whereFrom().
+    private Map<String, String> overrideSources = Collections.emptyMap();
+    private Map<String, String> defaultSources = Collections.emptyMap();
+
+    // immutable copy of the table for lock-free reads, replaced by writers once a change is complete.
+    private volatile PropertiesView snapshot;
+    // the last snapshot published, whose parsed values can be carried over.
+    private PropertiesView lastSnapshot;
+    // a load, reload or prompt in progress: its writes are published as one snapshot when it
+    // finishes, and until then only the thread making them sees them. guarded by this.
+    private int changeDepth;
+    private volatile Thread changingThread;
+    private boolean unpublished;
+    private PropertiesView pendingView;
+
+    private static volatile SmartPropertiesLogger logger;
+
+    private static final String BANNER = "\n" +
+        "      .:. Smart Properties .:.\n" +
+        "      _______________________\n" +
+        "     /   //=================/`\"-._\n" +
+        "    |   ||=================|      D\n" +
+        "jgs  \\___\\\\_________________\\__.-\"\n" +
+        "...::::::::::::::::::::::::::::.......\n";
+
+    private static final ConcurrentMap<Path, Object> FILE_MUTEXES = new ConcurrentHashMap<>();
 
     public SmartProperties() {
         overrideWithSystemProperties();
+        publishSnapshot();
     }
 
     public SmartProperties(Properties defaults) {
         super(defaults);
         overrideWithSystemProperties();
+        publishSnapshot();
     }
 
-    private SmartProperties(Properties defaults,
-                            File file,
-                            boolean promptForMissingProperties,
-                            List<PropertyDef> propertyDefs,
-                            boolean displayBanner,
-                            long timeoutMs) {
-        super(defaults);
+    private SmartProperties(PropertiesBuilder builder, File file) {
+        this(builder, file, builder.layers());
+    }
+
+    private SmartProperties(PropertiesBuilder builder, File file, PropertyLayers layers) {
+        super(layers.defaults);
+        this.overrides = layers.overrides;
+        this.overrideSources = layers.overrideSources;
+        this.defaultSources = layers.defaultSources;
         this.file = file;
-        this.promptForMissingProperties = promptForMissingProperties;
-        this.propertyDefs = propertyDefs;
-        this.displayBanner = displayBanner;
-        this.timeoutMs = timeoutMs;
+        this.promptForMissingProperties = builder.promptForMissingProperties;
+        this.promptMissingOnly = builder.promptMissingOnly;
+        this.propertyDefs = builder.registry();
+        this.displayBanner = builder.displayBanner;
+        this.timeoutMs = builder.timeoutMs;
+        this.listenerExecutor = builder.listenerExecutor;
+        this.fsyncPolicy = builder.fsyncPolicy;
+        this.lockFile = builder.lockFile;
+        this.deterministic = builder.deterministic;
+        this.promptProvider = builder.promptProvider;
+        if (builder.secretCodec != null) {
+            this.secretCodec = builder.secretCodec;
+        }
+        if (builder.metrics != null) {
+            this.metrics = builder.metrics;
+        }
+        if (builder.jmx) {
+            if (!(metrics instanceof InMemoryMetrics)) {
+                throw new IllegalStateException("Only the default in-memory metrics can be shown over JMX.");
+            }
+            ((InMemoryMetrics) metrics).registerMBean(file.getAbsolutePath());
+        }
         overrideWithSystemProperties();
+        publishSnapshot();
         load(file);
+        if (builder.watch) {
+            startWatching(builder.watchIntervalMs);
+        }
     }
 
     private void overrideWithSystemProperties() {
@@ -103,6 +203,11 @@ public class SmartProperties extends Properties {
             this.promptForMissingProperties = Boolean.parseBoolean(promptStr);
         }
 
+        String deterministicStr = System.getProperty("smartProperties.deterministic");
+        if (deterministicStr != null) {
+            this.deterministic = Boolean.parseBoolean(deterministicStr);
+        }
+
         String timeoutStr = System.getProperty("smartProperties.timeoutMs");
         if (timeoutStr != null) {
             long timeoutMs = Long.parseLong(timeoutStr);
@@ -119,6 +224,14 @@ public class SmartProperties extends Properties {
         return builder;
     }
 
+    /**
+     * Properties for a file and definitions, shared process wide.
+     * See {@link PropertiesBuilder#shared(Path)}.
+     */
+    public static SmartProperties shared(Path path, List<PropertyDef> propertyDefs) {
+        return get().properties(propertyDefs).shared(path);
+    }
+
     public boolean getDisplayBanner() {
         return displayBanner;
     }
@@ -132,23 +245,36 @@ public class SmartProperties extends Properties {
         optionallyDisplayBanner();
         if (file.exists()) {
             // load from file
-            try (FileInputStream fis = new FileInputStream(file)) {
+            try {
                 this.file = file;
 
-                String message = "Reading properties from file " + file.getAbsolutePath() + " (delete this file to reset)";
-                System.out.println(message);
-                load(fis);
-                System.out.println("Loaded SmartProperties from file " + file.getAbsolutePath());
+                log(SmartPropertiesLogger.Level.INFO, () -> "Reading properties from file " + file.getAbsolutePath() + " (delete this file to reset)");
+                long start = System.nanoTime();
+                long prompting = promptNanos;
+                int promptsBefore = prompts;
+                boolean fresh = isEmpty();
+                Path path = file.toPath().toAbsolutePath();
+                long modified = Files.getLastModifiedTime(path).toMillis();
+                long bytes = file.length();
+                loadFromFile(file);
+                if (fresh && prompts == promptsBefore) {
+                    // nothing but the file went into the properties
+                    synced = new FileStamp(path, modified, bytes, snapshot().contentHash());
+                }
+                metrics.loaded(System.nanoTime() - start - (promptNanos - prompting), bytes, size());
+                log(SmartPropertiesLogger.Level.INFO, () -> "Loaded SmartProperties from file " + file.getAbsolutePath());
             } catch (Exception e) {
+                metrics.failed(SmartPropertiesMetrics.Operation.LOAD);
                 throw new RuntimeException("Error loading properties from file " + file.getAbsolutePath() + ".  You can delete the file if you want to reset.", e);
             }
         } else {
             // create an empty file
             try {
-                System.out.println(file.getAbsoluteFile() + " does not exist (creating file)");
+                log(SmartPropertiesLogger.Level.INFO, () -> file.getAbsoluteFile() + " does not exist (creating file)");
                 Files.createDirectories(file.toPath().getParent());
                 Files.write(file.toPath(), "".getBytes());
-                promptForMissingProperties();
+                this.file = file;
+                loadFromFile(file);
             } catch (IOException e) {
                 throw new RuntimeException("Error creating properties file " + file.getAbsolutePath(), e);
             }
@@ -165,37 +291,344 @@ public class SmartProperties extends Properties {
 
     @Override
     public synchronized void load(Reader reader) throws IOException {
-        super.load(reader);
-        decodeSecretProperties();
-        promptForMissingProperties();
+        applyLoad(() -> super.load(reader));
     }
 
     @Override
     public synchronized void load(InputStream inStream) throws IOException {
-        super.load(inStream);
-        decodeSecretProperties();
-        promptForMissingProperties();
+        applyLoad(() -> super.load(inStream));
+    }
+
+    private synchronized void loadFromFile(File file) throws IOException {
+        applyLoad(() -> {
+            Set<String> keys = new HashSet<>();
+            // parsed straight into the table, noting the keys on the way
+            Properties target = new Properties() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public synchronized Object put(Object key, Object value) {
+                    keys.add((String) key);
+                    return SmartProperties.this.put(key, value);
+                }
+            };
+            // the file is closed before prompting may replace it: Windows won't replace an open file.
+            try (FileInputStream fis = new FileInputStream(file)) {
+                target.load(fis);
+            }
+            fileKeys = Collections.unmodifiableSet(keys);
+        });
+    }
+
+    private interface TableWrite {
+        void write() throws IOException;
+    }
+
+    /**
+     * Apply what was read, prompt for what is missing, and check the result as one change.
+     * The new values are checked before they are published; if any is invalid
+     * the table is put back as it was, so nothing is applied and no listener is called.
+     */
+    private synchronized void applyLoad(TableWrite write) throws IOException {
+        Map<String, String> before = copyValues();
+        Set<String> fileKeysBefore = fileKeys;
+        boolean applied = false;
+        beginChange();
+        try {
+            write.write();
+            promptForMissingProperties();
+            // this thread is changing, so this is the unpublished view of the new values
+            snapshot().validate();
+            applied = true;
+        } finally {
+            if (!applied) {
+                restore(before);
+                fileKeys = fileKeysBefore;
+            }
+            endChange(null);
+        }
+        fireChanges(listeners.isEmpty() ? null : before);
+    }
+
+    private synchronized void restore(Map<String, String> values) {
+        for (Object key : new ArrayList<>(keySet())) {
+            if (!values.containsKey(key)) {
+                remove(key);
+            }
+        }
+        putAll(values);
+    }
+
+    /**
+     * Set a property.  Values for secret properties are given in plain text
+     * and encoded before they go into the table.
+     */
+    @Override
+    public synchronized Object setProperty(String key, String value) {
+        String storedValue = toStoredValue(key, value);
+        Object oldValue = super.setProperty(key, storedValue);
+        if (!listeners.isEmpty() && !storedValue.equals(oldValue)) {
+            ChangeSet changes = new ChangeSet();
+            changes.add(key, oldValue instanceof String ? (String) oldValue : null, storedValue);
+            fireChanges(changes);
+        }
+        return oldValue;
+    }
+
+    /**
+     * Be notified when properties change.  A load, reload or prompt
+     * results in a single {@link ChangeSet} per listener, however many
+     * properties it touched.
+     *
+     * @param keyPrefix only changes to properties whose names start with this prefix are delivered
+     * @param listener  called on the listener executor
+     */
+    public void addListener(String keyPrefix, Consumer<ChangeSet> listener) {
+        Objects.requireNonNull(keyPrefix, "Key prefix may not be null");
+        listeners.add(new Listener(key -> key.startsWith(keyPrefix), listener));
+    }
+
+    /**
+     * Be notified when any of the given properties change.
+     *
+     * @param keys     only changes to these properties are delivered
+     * @param listener called on the listener executor
+     */
+    public void addListener(Collection<String> keys, Consumer<ChangeSet> listener) {
+        Set<String> keySet = new HashSet<>(keys);
+        listeners.add(new Listener(keySet::contains, listener));
+    }
+
+    public void removeListener(Consumer<ChangeSet> listener) {
+        listeners.removeIf(l -> l.consumer == listener);
+    }
+
+    /**
+     * Set where listeners are called.  Defaults to a single shared daemon thread,
+     * so listeners never run on the thread that is loading.
+     */
+    public void setListenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+    }
+
+    private Map<String, String> valuesForListeners() {
+        return listeners.isEmpty() ? null : copyValues();
+    }
+
+    private void fireChanges(Map<String, String> before) {
+        if (before != null) {
+            fireChanges(ChangeSet.diff(before, copyValues()));
+        }
+    }
+
+    private void fireChanges(ChangeSet changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        Executor executor = listenerExecutor != null ? listenerExecutor : ListenerExecutorHolder.EXECUTOR;
+        for (Listener listener : listeners) {
+            ChangeSet matching = changes.filter(listener.matcher);
+            if (!matching.isEmpty()) {
+                executor.execute(() -> {
+                    try {
+                        listener.consumer.accept(matching);
+                    } catch (RuntimeException e) {
+                        log(SmartPropertiesLogger.Level.ERROR, "Error notifying SmartProperties listener.", e);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Get a property as an int.  The parsed value is cached until the property changes.
+     *
+     * @throws NoSuchElementException   if the property is not set
+     * @throws IllegalArgumentException if the value is not an int
+     */
+    public int getInt(String key) {
+        return snapshot().getInt(key);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        return snapshot().getInt(key, defaultValue);
+    }
+
+    public long getLong(String key) {
+        return snapshot().getLong(key);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        return snapshot().getLong(key, defaultValue);
+    }
+
+    public boolean getBoolean(String key) {
+        return snapshot().getBoolean(key);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return snapshot().getBoolean(key, defaultValue);
+    }
+
+    public Duration getDuration(String key) {
+        return snapshot().getDuration(key);
+    }
+
+    public Duration getDuration(String key, Duration defaultValue) {
+        return snapshot().getDuration(key, defaultValue);
+    }
+
+    public long getSize(String key) {
+        return snapshot().getSize(key);
+    }
+
+    public <E extends Enum<E>> E getEnum(String key, Class<E> enumType) {
+        return snapshot().getEnum(key, enumType);
+    }
+
+    public List<String> getList(String key) {
+        return snapshot().getList(key);
+    }
+
+    /**
+     * Get an immutable view of these properties (including defaults) as of the last change.
+     * Reads from the view take no lock, so it is the one to hand out to hot paths.
+     * Changes made through setProperty, put, putAll, remove or clear are published as soon as they are made;
+     * a load or reload is published once it has finished, so readers keep the previous view
+     * while it reads the file or prompts, and never see it half done.
+     *
+     * @return the current view
+     */
+    public PropertiesView snapshot() {
+        if (changingThread == Thread.currentThread()) {
+            return pendingSnapshot();
+        }
+        return snapshot;
+    }
+
+    // the thread in the middle of a change sees its own writes
+    private synchronized PropertiesView pendingSnapshot() {
+        if (!unpublished) {
+            return snapshot;
+        }
+        if (pendingView == null) {
+            pendingView = newView(copyValues());
+        }
+        return pendingView;
+    }
+
+    private synchronized PropertiesView publishSnapshot() {
+        return publish(newView(copyValues()));
+    }
+
+    private synchronized void beginChange() {
+        if (changeDepth++ == 0) {
+            changingThread = Thread.currentThread();
+        }
+    }
+
+    // publish the writes made since beginChange, as the given view if it is already built
+    private synchronized void endChange(PropertiesView view) {
+        if (--changeDepth > 0) {
+            return;
+        }
+        changingThread = null;
+        if (view != null) {
+            publish(view);
+        } else if (unpublished) {
+            publish(pendingView != null ? pendingView : newView(copyValues()));
+        }
+        unpublished = false;
+        pendingView = null;
+    }
+
+    // called with the lock held after every write to the table
+    private void changed() {
+        if (changeDepth > 0) {
+            unpublished = true;
+            pendingView = null;
+        } else {
+            publishSnapshot();
+        }
+    }
+
+    // a view of the given values that isn't published, so it can be checked first
+    private synchronized PropertiesView newView(Map<String, String> values) {
+        Map<String, String> defaultValues = new HashMap<>();
+        if (defaults != null) {
+            for (String name : defaults.stringPropertyNames()) {
+                defaultValues.put(name, defaults.getProperty(name));
+            }
+        }
+        return new PropertiesView(this, values, defaultValues, overrides, lastSnapshot);
+    }
+
+    private synchronized PropertiesView publish(PropertiesView view) {
+        lastSnapshot = view;
+        snapshot = view;
+        return view;
+    }
+
+    private synchronized Map<String, String> copyValues() {
+        Map<String, String> values = new HashMap<>(size() * 4 / 3 + 1);
+        for (Map.Entry<Object, Object> entry : entrySet()) {
+            if (entry.getKey() instanceof String && entry.getValue() instanceof String) {
+                values.put((String) entry.getKey(), (String) entry.getValue());
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public synchronized Object put(Object key, Object value) {
+        Object oldValue = super.put(key, value);
+        changed();
+        return oldValue;
+    }
+
+    @Override
+    public synchronized void putAll(Map<?, ?> t) {
+        // one snapshot for the lot, not one per entry
+        beginChange();
+        try {
+            super.putAll(t);
+            // Properties.putAll doesn't go through put on every JDK
+            changed();
+        } finally {
+            endChange(null);
+        }
+    }
+
+    @Override
+    public synchronized Object remove(Object key) {
+        Object oldValue = super.remove(key);
+        changed();
+        return oldValue;
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        changed();
     }
 
     private void promptForMissingProperties() {
         if (!promptForMissingProperties) {
-            System.out.println("Not prompting for missing properties.");
+            log(SmartPropertiesLogger.Level.INFO, "Not prompting for missing properties.");
             return;
         }
 
         // Just create the dialog and fill out the data
         // This will let the user decide once what they actually want
         List<PropertyUiData> properties = new ArrayList<>();
-        for (PropertyDef def : propertyDefs) {
-            PropertyUiData property = new PropertyUiData(def, getProperty(def.getName()));
-            properties.add(property);
-        }
-
         boolean missingProperties = false;
-        for (PropertyUiData property : properties) {
-            if (property.getValue() == null) {
-                missingProperties = true;
-                break;
+        for (PropertyDef def : propertyDefs.getDefs()) {
+            String value = currentValue(def);
+            boolean missing = value == null || (promptMissingOnly && !isValid(def, value));
+            missingProperties |= missing;
+            if (missing || !promptMissingOnly) {
+                properties.add(new PropertyUiData(def, value));
             }
         }
 
@@ -203,277 +636,3576 @@ public class SmartProperties extends Properties {
             return;
         }
 
-        // build and show the dialog.
-        EditPropertiesTable editPropertiesTable = new EditPropertiesTable(properties);
-        System.out.println("Missing some properties.  Look for a dialog.");
+        PromptProvider provider = promptProvider != null ? promptProvider : defaultPromptProvider();
+        long start = System.nanoTime();
+        List<PropertyUiData> edited = provider.prompt(properties, timeoutMs);
+        long waited = System.nanoTime() - start;
+        prompts++;
+        promptNanos += waited;
+        metrics.prompted(waited);
+        if (edited != null) {
+            // update the properties...
+            Map<String, String> changed = new LinkedHashMap<>();
+            for (PropertyUiData property : edited) {
+                String name = property.getPropertyDef().getName();
+                // values from the environment, system properties or command line stay out of the file
+                if (property.getValue() != null && !property.getValue().equals(overrides.get(name))) {
+                    String stored = toStoredValue(name, property.getValue());
+                    if (!stored.equals(put(name, stored))) {
+                        changed.put(name, stored);
+                    }
+                }
+            }
 
-        JFrame frame = new JFrame("Edit Properties");
-        frame.setUndecorated(true);
-        frame.setLocationRelativeTo(null);
-        frame.setIconImages(getIcons());
-        frame.setVisible(true);
+            // can we save the properties during load??
+            if (file != null && provider.persistValues()) {
+                if (!promptMissingOnly) {
+                    store(file);
+                } else if (!changed.isEmpty()) {
+                    storeChanges(file, changed);
+                }
+            }
+        }
+    }
 
-        JComponent table = editPropertiesTable.render();
+    // a secret in another codec's format, e.g. after switching codecs, is asked for again.
+    // one in this codec's format that can't be decrypted (wrong key) fails the load instead.
+    private String currentValue(PropertyDef def) {
+        try {
+            return getProperty(def.getName());
+        } catch (IllegalArgumentException e) {
+            if (!def.getSecret()) {
+                throw e;
+            }
+            log(SmartPropertiesLogger.Level.WARN, "Secret property " + def.getName() + " could not be decoded; asking for it again.", e);
+            return null;
+        }
+    }
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<Integer> responseFuture = executor.submit(() -> {
-            int dlgResponse = JOptionPane.showOptionDialog(
-                frame,
-                table,
-                "Edit Properties",
-                JOptionPane.OK_CANCEL_OPTION,
-                JOptionPane.INFORMATION_MESSAGE,
-                new ImageIcon(getIcons().get(2)),
-                new Object[]{"OK", "Cancel"},
-                "OK"
-            );
-            return dlgResponse;
-        });
+    private static boolean isValid(PropertyDef def, String value) {
+        if (def.getType() == PropertyType.STRING) {
+            return true;
+        }
+        try {
+            ParsedValue.parse(def.getName(), value, value, def.getType(), def.getEnumType(), def.getSecret());
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Choose how to ask for missing properties.  The smartProperties.promptProvider
+     * system property wins; otherwise use the dialog when there is a display,
+     * the console when there is one, and environment variables as a last resort.
+     */
+    private static PromptProvider defaultPromptProvider() {
+        String name = System.getProperty("smartProperties.promptProvider");
+        if (name != null) {
+            switch (name) {
+                case "swing":
+                    return new SwingPromptProvider();
+                case "console":
+                    return new ConsolePromptProvider();
+                case "environment":
+                    return new EnvironmentPromptProvider();
+                case "none":
+                    return new NoOpPromptProvider();
+                default:
+                    throw new IllegalArgumentException(name + " not valid. smartProperties.promptProvider should be one of swing, console, environment or none.");
+            }
+        }
+
+        if (!GraphicsEnvironment.isHeadless()) {
+            return new SwingPromptProvider();
+        } else if (System.console() != null) {
+            return new ConsolePromptProvider();
+        } else {
+            return new EnvironmentPromptProvider();
+        }
+    }
+
+    public PromptProvider getPromptProvider() {
+        return promptProvider;
+    }
+
+    public void setPromptProvider(PromptProvider promptProvider) {
+        this.promptProvider = promptProvider;
+    }
+
+    /**
+     * The metrics this instance reports to; an {@link InMemoryMetrics} unless another was given.
+     */
+    public SmartPropertiesMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(SmartPropertiesMetrics metrics) {
+        this.metrics = Objects.requireNonNull(metrics, "Metrics may not be null");
+    }
+
+    private void optionallyDisplayBanner() {
+        if (displayBanner) {
+            log(SmartPropertiesLogger.Level.INFO, BANNER);
+        }
+    }
+
+    /**
+     * Where SmartProperties writes what it is doing.  By default this is SLF4J when it is
+     * on the classpath and the console otherwise; see the smartProperties.logger system property.
+     */
+    public static SmartPropertiesLogger getLogger() {
+        SmartPropertiesLogger current = logger;
+        if (current == null) {
+            current = defaultLogger();
+            logger = current;
+        }
+        return current;
+    }
+
+    public static void setLogger(SmartPropertiesLogger logger) {
+        SmartProperties.logger = Objects.requireNonNull(logger, "Logger may not be null");
+    }
+
+    private static SmartPropertiesLogger defaultLogger() {
+        String level = System.getProperty("smartProperties.logLevel");
+        SmartPropertiesLogger.Level threshold = level == null
+            ? SmartPropertiesLogger.Level.INFO
+            : SmartPropertiesLogger.Level.valueOf(level.toUpperCase(Locale.ROOT));
+
+        String name = System.getProperty("smartProperties.logger");
+        if (name == null) {
+            SmartPropertiesLogger slf4j = Slf4jLogger.create();
+            return slf4j != null ? slf4j : new ConsoleLogger(threshold);
+        }
+        switch (name) {
+            case "console":
+                return new ConsoleLogger(threshold);
+            case "slf4j":
+                SmartPropertiesLogger slf4j = Slf4jLogger.create();
+                if (slf4j == null) {
+                    throw new IllegalStateException("smartProperties.logger is slf4j but SLF4J is not on the classpath.");
+                }
+                return slf4j;
+            case "none":
+                return new NoOpLogger();
+            default:
+                throw new IllegalArgumentException(name + " not valid. smartProperties.logger should be console, slf4j or none.");
+        }
+    }
+
+    // the message is only built if the level is enabled.
+    static void log(SmartPropertiesLogger.Level level, Supplier<String> message) {
+        SmartPropertiesLogger current = getLogger();
+        if (current.isEnabled(level)) {
+            current.log(level, message.get(), null);
+        }
+    }
+
+    static void log(SmartPropertiesLogger.Level level, String message) {
+        log(level, message, null);
+    }
+
+    static void log(SmartPropertiesLogger.Level level, String message, Throwable error) {
+        SmartPropertiesLogger current = getLogger();
+        if (current.isEnabled(level)) {
+            current.log(level, message, error);
+        }
+    }
+
+    /**
+     * Get a property.  Secret properties are kept encoded in the table
+     * and decoded here the first time they are read; later reads return the same String.
+     * Strings can't be wiped, so use {@link #getSecret(String)} for secrets
+     * that should not outlive {@link #wipeSecrets()}.
+     */
+    @Override
+    public String getProperty(String key) {
+        String value = overrides.isEmpty() ? null : overrides.get(key);
+        if (value == null) {
+            if (propertyDefs.isSecret(key)) {
+                Object stored = get(key);
+                if (stored instanceof String) {
+                    return decodedSecretText(key, (String) stored);
+                }
+            }
+            // defaults are never encoded
+            value = super.getProperty(key);
+        }
+        // placeholders are resolved, and remembered, by the snapshot
+        if (value != null && Placeholders.hasPlaceholders(value)) {
+            return snapshot().getProperty(key);
+        }
+        return value;
+    }
+
+    /**
+     * Describe where the value returned by getProperty comes from,
+     * e.g. "environment variable DB_PASSWORD" or "file /home/me/app.properties".
+     * Returns null if the property is not set anywhere.
+     */
+    public String whereFrom(String key) {
+        String source = overrideSources.get(key);
+        if (source != null) {
+            return source;
+        }
+        if (containsKey(key)) {
+            return file != null ? "file " + file.getAbsolutePath() : "properties";
+        }
+        source = defaultSources.get(key);
+        if (source != null) {
+            return source;
+        }
+        return defaults != null && defaults.getProperty(key) != null ? "defaults" : null;
+    }
+
+    /**
+     * Get the plain value of a secret property as characters,
+     * which the caller can wipe when done with them.
+     *
+     * @return a copy of the decoded value, or null if the property is not set
+     */
+    public char[] getSecret(String key) {
+        String override = overrides.get(key);
+        if (override != null) {
+            return override.toCharArray();
+        }
+        if (propertyDefs.isSecret(key)) {
+            Object value = get(key);
+            if (value instanceof String) {
+                return decodedSecret(key, (String) value).clone();
+            }
+        }
+        String value = super.getProperty(key);
+        return value == null ? null : value.toCharArray();
+    }
+
+    /**
+     * Overwrite every decoded secret held in memory.
+     * Secrets are decoded again the next time they are read.
+     * Strings already returned by getProperty can't be reached, only dropped from the cache;
+     * read secrets with {@link #getSecret(String)} to be able to wipe every copy.
+     */
+    public void wipeSecrets() {
+        for (SecretSlot slot : secretSlots.values()) {
+            Arrays.fill(slot.decoded, '\0');
+        }
+        secretSlots.clear();
+    }
+
+    private char[] decodedSecret(String key, String encoded) {
+        return secretSlot(key, encoded).decoded;
+    }
+
+    // one String per decoded secret, so reading a secret doesn't make another plain copy
+    private String decodedSecretText(String key, String encoded) {
+        SecretSlot slot = secretSlot(key, encoded);
+        String text = slot.text;
+        if (text == null) {
+            text = new String(slot.decoded);
+            slot.text = text;
+        }
+        return text;
+    }
+
+    private SecretSlot secretSlot(String key, String encoded) {
+        SecretSlot slot = secretSlots.get(key);
+        if (slot == null || !slot.encoded.equals(encoded)) {
+            long start = System.nanoTime();
+            slot = new SecretSlot(encoded, decode(key, encoded));
+            metrics.secretDecoded(System.nanoTime() - start);
+            secretSlots.put(key, slot);
+        }
+        return slot;
+    }
+
+    private char[] decode(String key, String encoded) {
+        byte[] bytes;
+        try {
+            bytes = secretCodec.decode(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Secret property " + key + " could not be decoded.", e);
+        } catch (IllegalStateException e) {
+            throw new IllegalStateException("Secret property " + key + " could not be decrypted.  Check the passphrase or keystore.", e);
+        }
+
+        CharBuffer chars = Charset.defaultCharset().decode(ByteBuffer.wrap(bytes));
+        char[] decoded = Arrays.copyOfRange(chars.array(), chars.position(), chars.limit());
+        Arrays.fill(bytes, (byte) 0);
+        Arrays.fill(chars.array(), '\0');
+        return decoded;
+    }
 
+    // the value as it is kept in the table: encoded for secret properties.
+    private String toStoredValue(String key, String value) {
+        if (value == null || !propertyDefs.isSecret(key)) {
+            return value;
+        }
+        // codecs that encrypt give different text every time; keep the old text for the same value
+        Object current = get(key);
+        if (current instanceof String) {
+            try {
+                if (Arrays.equals(decodedSecret(key, (String) current), value.toCharArray())) {
+                    return (String) current;
+                }
+            } catch (IllegalArgumentException e) {
+                // not readable with this codec; replace it
+            }
+        }
+        byte[] bytes = value.getBytes();
         try {
-            int response = responseFuture.get(timeoutMs, TimeUnit.MILLISECONDS);
-            if (response == OK_OPTION) {
-                properties = editPropertiesTable.getProperties();
+            return secretCodec.encode(bytes);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    public SecretCodec getSecretCodec() {
+        return secretCodec;
+    }
+
+    /**
+     * Choose how secrets are encoded.  Set this before loading:
+     * values already in the table are not encoded again.
+     */
+    public void setSecretCodec(SecretCodec secretCodec) {
+        this.secretCodec = Objects.requireNonNull(secretCodec, "Secret codec may not be null");
+        wipeSecrets();
+    }
+
+    /**
+     * Re-read the backing file and apply only the entries that changed.
+     * Unlike load(File) this never prompts for missing properties.
+     * If any new value is invalid nothing is applied, and the current properties are kept.
+     * Properties removed from the file are removed; ones that were never in the file,
+     * like those set in code, stay.
+     *
+     * @return the names of the properties that were added, changed or removed
+     */
+    public synchronized Set<String> reload() {
+        if (file == null) {
+            throw new IllegalStateException("No file to reload properties from.");
+        }
+
+        ChangeSet changes = new ChangeSet();
+        if (!file.exists()) {
+            // the file is probably being replaced; keep what we have.
+            return changes.getKeys();
+        }
+
+        Properties fresh = new Properties();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            fresh.load(fis);
+        } catch (Exception e) {
+            metrics.failed(SmartPropertiesMetrics.Operation.RELOAD);
+            throw new RuntimeException("Error reloading properties from file " + file.getAbsolutePath(), e);
+        }
+
+        Map<String, String> values = copyValues();
+        for (String name : fresh.stringPropertyNames()) {
+            String value = fresh.getProperty(name);
+            String oldValue = values.put(name, value);
+            if (!value.equals(oldValue)) {
+                changes.add(name, oldValue, value);
+            }
+        }
+
+        // only keys that were in the file can have been removed from it;
+        // ones set in code or by a prompt that didn't store them stay.
+        for (String key : fileKeys) {
+            if (!fresh.containsKey(key) && values.containsKey(key)) {
+                changes.add(key, values.remove(key), null);
+            }
+        }
+
+        if (changes.isEmpty()) {
+            fileKeys = Collections.unmodifiableSet(new HashSet<>(fresh.stringPropertyNames()));
+            metrics.reloaded(0);
+            return changes.getKeys();
+        }
+
+        // check the new values before any of them are applied, so a bad file changes nothing
+        PropertiesView view;
+        try {
+            view = newView(values);
+            view.validate();
+        } catch (IllegalArgumentException e) {
+            metrics.failed(SmartPropertiesMetrics.Operation.RELOAD);
+            throw new RuntimeException("Error reloading properties from file " + file.getAbsolutePath() + ".  Keeping the current properties.", e);
+        }
+
+        beginChange();
+        try {
+            for (String key : changes.getKeys()) {
+                String value = values.get(key);
+                if (value == null) {
+                    remove(key);
+                } else {
+                    put(key, value);
+                }
+            }
+        } finally {
+            endChange(view);
+        }
+        fileKeys = Collections.unmodifiableSet(new HashSet<>(fresh.stringPropertyNames()));
+
+        log(SmartPropertiesLogger.Level.INFO, () -> "Reloaded " + changes.getKeys().size() + " properties from file " + file.getAbsolutePath());
+        metrics.reloaded(changes.getKeys().size());
+        fireChanges(changes);
+        return changes.getKeys();
+    }
+
+    /**
+     * Watch the backing file and {@link #reload()} whenever its
+     * modified time or size changes.
+     *
+     * @param pollIntervalMs how often to check the file when no
+     *                       file system events arrive
+     */
+    public synchronized void startWatching(long pollIntervalMs) {
+        if (file == null) {
+            throw new IllegalStateException("No file to watch.");
+        }
+        if (pollIntervalMs <= 0) {
+            throw new IllegalArgumentException(pollIntervalMs + " not valid. pollIntervalMs should be greater than 0ms.");
+        }
+
+        stopWatching();
+        watcher = new FileWatcher(this, file, pollIntervalMs);
+        watcher.start();
+    }
+
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    public void store(File file) {
+        store(file, "Generated with SmartProperties.  Delete or edit this file to reset.");
+    }
+
+    /**
+     * Store the properties without ever leaving a partially written file behind.
+     * The properties are written to a temp file next to the target,
+     * synced according to the {@link FsyncPolicy}, then moved over the target.
+     * <p>
+     * Storing back to the file the properties were loaded from keeps that file's layout:
+     * lines whose value hasn't changed are copied as they are, along with comments,
+     * blank lines and ordering, so the file only differs where the properties do.
+     * The comments are only written when the file is new or empty.
+     * <p>
+     * Nothing is written when neither the properties nor the file have changed
+     * since the file was last loaded or stored, so its modification time stays the same.
+     */
+    public void store(File file, String comments) {
+        Path target = file.toPath().toAbsolutePath();
+        try {
+            long start = System.nanoTime();
+            PropertiesView view = snapshot();
+            String hash = view.contentHash();
+            long bytes = underFileLock(target, () -> {
+                FileStamp stamp = synced;
+                if (stamp != null && stamp.matches(target, hash)) {
+                    return -1L;
+                }
+                long written = keepsLayout(target)
+                        ? patch(target, view.values, true, false)
+                        : writeAtomically(target, out -> store(out, comments, view));
+                synced = FileStamp.of(target, hash);
+                if (this.file != null && this.file.toPath().toAbsolutePath().equals(target)) {
+                    fileKeys = Collections.unmodifiableSet(new HashSet<>(view.values.keySet()));
+                }
+                return written;
+            });
+            if (bytes < 0) {
+                log(SmartPropertiesLogger.Level.DEBUG, () -> "Properties unchanged since " + target + " was last read or written; not storing.");
+                return;
+            }
+            metrics.stored(System.nanoTime() - start, bytes, size());
+        } catch (Exception e) {
+            metrics.failed(SmartPropertiesMetrics.Operation.STORE);
+            throw new RuntimeException("Error storing properties.", e);
+        }
+    }
+
+    /**
+     * Store just the given entries, leaving the rest of the file as it is.
+     * New keys are appended; keys already in the file are replaced where they stand,
+     * and the file is then rewritten line by line with its comments and order intact.
+     */
+    private void storeChanges(File file, Map<String, String> changes) {
+        Path target = file.toPath().toAbsolutePath();
+        try {
+            long start = System.nanoTime();
+            long bytes = underFileLock(target, () -> patch(target, changes, false, true));
+            Set<String> keys = new HashSet<>(fileKeys);
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    keys.remove(change.getKey());
+                } else {
+                    keys.add(change.getKey());
+                }
+            }
+            fileKeys = Collections.unmodifiableSet(keys);
+            metrics.stored(System.nanoTime() - start, bytes, size());
+        } catch (Exception e) {
+            metrics.failed(SmartPropertiesMetrics.Operation.STORE);
+            throw new RuntimeException("Error storing properties.", e);
+        }
+    }
+
+    private interface FileWrite {
+        // returns the number of bytes written
+        long write() throws IOException;
+    }
+
+    private interface StreamWrite {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private long underFileLock(Path target, FileWrite write) throws IOException {
+        Files.createDirectories(target.getParent());
+        synchronized (fileMutex(target)) {
+            if (lockFile) {
+                Path lockPath = target.resolveSibling(target.getFileName() + ".lock");
+                try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    FileLock lock = lockChannel.lock();
+                    try {
+                        return write.write();
+                    } finally {
+                        lock.release();
+                    }
+                }
+            }
+            return write.write();
+        }
+    }
+
+    private boolean keepsLayout(Path target) throws IOException {
+        return file != null
+                && file.toPath().toAbsolutePath().equals(target)
+                && Files.exists(target)
+                && Files.size(target) > 0;
+    }
+
+    /**
+     * @param entries  the entries to write; a null value removes the entry
+     * @param complete true if entries holds every property, so any other key in the file is removed
+     * @param appendInPlace true to append new keys to the file itself when no existing line changes.
+     *                      A crash or a concurrent reader can then see a partly written last line,
+     *                      so only storing prompted values does it; store(File) always replaces the file.
+     */
+    private long patch(Path target, Map<String, String> entries, boolean complete, boolean appendInPlace) throws IOException {
+        PropertiesPatcher patcher = new PropertiesPatcher(entries, complete, deterministic);
+        if (Files.exists(target)) {
+            patcher.scan(target);
+        }
+        if (patcher.canAppend() && !patcher.hasAppends()) {
+            return 0;
+        }
+        if (!appendInPlace || !patcher.canAppend()) {
+            return writeAtomically(target, out -> patcher.rewrite(target, out));
+        }
+
+        // nothing in the file changes, so there is nothing to replace.
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long before = channel.size();
+            patcher.append(Channels.newOutputStream(channel));
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                channel.force(true);
+            }
+            return channel.size() - before;
+        }
+    }
+
+    // returns the number of bytes written
+    private long writeAtomically(Path target, StreamWrite write) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+        try {
+            long bytes;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                // the writers buffer and flush on their own,
+                // so the channel sees large writes without another copy.
+                write.write(Channels.newOutputStream(channel));
+                bytes = channel.position();
+                if (fsyncPolicy != FsyncPolicy.NONE) {
+                    channel.force(true);
+                }
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            if (fsyncPolicy == FsyncPolicy.FILE_AND_DIRECTORY) {
+                syncDirectory(target.getParent());
+            }
+            return bytes;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // some platforms (Windows) can't open or sync a directory;
+            // the file itself is already synced, so the store still succeeds.
+            log(SmartPropertiesLogger.Level.WARN, "Error syncing directory " + dir + "; the rename may not survive a crash.", e);
+        }
+    }
+
+    private static Object fileMutex(Path path) {
+        // a FileLock is held per JVM, so writers within the JVM must take turns first.
+        return FILE_MUTEXES.computeIfAbsent(path, p -> new Object());
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = Objects.requireNonNull(fsyncPolicy, "Fsync policy may not be null");
+    }
+
+    public boolean getDeterministic() {
+        return deterministic;
+    }
+
+    public void setDeterministic(boolean deterministic) {
+        this.deterministic = deterministic;
+    }
+
+    public boolean getLockFile() {
+        return lockFile;
+    }
+
+    public void setLockFile(boolean lockFile) {
+        this.lockFile = lockFile;
+    }
+
+    // Storing works from the snapshot, where secrets are already encoded,
+    // so the table is never modified and readers are never blocked.
+    @Override
+    public void store(Writer writer, String comments) throws IOException {
+        BufferedWriter bufferedWriter = writer instanceof BufferedWriter ? (BufferedWriter) writer : new BufferedWriter(writer);
+        new PropertiesWriter(bufferedWriter, false, deterministic).write(snapshot(), comments);
+    }
+
+    @Override
+    public void store(OutputStream out, String comments) throws IOException {
+        store(out, comments, snapshot());
+    }
+
+    private void store(OutputStream out, String comments, PropertiesView view) throws IOException {
+        BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(out, "8859_1"));
+        new PropertiesWriter(bufferedWriter, true, deterministic).write(view, comments);
+    }
+
+    /**
+     * A hash of the properties as they would be stored; see {@link PropertiesView#contentHash()}.
+     */
+    public String contentHash() {
+        return snapshot().contentHash();
+    }
+
+    /**
+     * When a file was last seen and what was in it.
+     */
+    private static final class FileStamp {
+        private final Path path;
+        private final long lastModified;
+        private final long length;
+        private final String contentHash;
+
+        private FileStamp(Path path, long lastModified, long length, String contentHash) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.contentHash = contentHash;
+        }
+
+        private static FileStamp of(Path path, String contentHash) throws IOException {
+            return new FileStamp(path, Files.getLastModifiedTime(path).toMillis(), Files.size(path), contentHash);
+        }
+
+        private boolean matches(Path path, String contentHash) throws IOException {
+            return this.path.equals(path)
+                    && this.contentHash.equals(contentHash)
+                    && Files.exists(path)
+                    && lastModified == Files.getLastModifiedTime(path).toMillis()
+                    && length == Files.size(path);
+        }
+    }
+
+    public boolean getPromptForMissingProperties() {
+        return promptForMissingProperties;
+    }
+
+    public void setPromptForMissingProperties(boolean promptForMissingProperties) {
+        this.promptForMissingProperties = promptForMissingProperties;
+    }
+
+    public boolean getPromptMissingOnly() {
+        return promptMissingOnly;
+    }
+
+    public void setPromptMissingOnly(boolean promptMissingOnly) {
+        this.promptMissingOnly = promptMissingOnly;
+    }
+
+    public static class PropertyDef {
+        private String name;
+        private String description;
+        private boolean secret;
+        private PropertyType type = PropertyType.STRING;
+        private Class<? extends Enum<?>> enumType;
+
+        public PropertyDef() {
+        }
+
+        public PropertyDef(String name, String description, boolean secret) {
+            this.name = name;
+            this.description = description;
+            this.secret = secret;
+        }
+
+        public PropertyDef(String name, String description, boolean secret, PropertyType type) {
+            this(name, description, secret);
+            this.type = Objects.requireNonNull(type, "Type may not be null");
+        }
+
+        public PropertyDef(PropertyDef other) {
+            this.name = other.name;
+            this.description = other.description;
+            this.secret = other.secret;
+            this.type = other.type;
+            this.enumType = other.enumType;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public void setDescription(String description) {
+            this.description = description;
+        }
+
+        public boolean getSecret() {
+            return secret;
+        }
+
+        public void setSecret(boolean secret) {
+            this.secret = secret;
+        }
+
+        public PropertyType getType() {
+            return type;
+        }
+
+        public void setType(PropertyType type) {
+            this.type = type;
+        }
+
+        public Class<? extends Enum<?>> getEnumType() {
+            return enumType;
+        }
+
+        public void setEnumType(Class<? extends Enum<?>> enumType) {
+            this.enumType = enumType;
+        }
+    }
+
+    /**
+     * What a property's value should parse as.  Typed properties are checked when they are loaded.
+     */
+    public enum PropertyType {
+        STRING,
+        INT,
+        LONG,
+        BOOLEAN,
+        /**
+         * ISO-8601 ("PT30S") or a number with a unit: ms, s, m, h or d.  A plain number is milliseconds.
+         */
+        DURATION,
+        /**
+         * A number of bytes with an optional unit: B, KB, MB, GB or TB (powers of 1024).
+         */
+        SIZE,
+        ENUM,
+        /**
+         * Comma separated; entries are trimmed and empty entries dropped.
+         */
+        LIST
+    }
+
+    /**
+     * A property value parsed once.  Numbers and booleans are kept
+     * as a primitive so reading them never boxes.
+     */
+    private static class ParsedValue {
+        private final String stored;
+        private final PropertyType type;
+        private final long number;
+        private final Object object;
+
+        private ParsedValue(String stored, PropertyType type, long number, Object object) {
+            this.stored = stored;
+            this.type = type;
+            this.number = number;
+            this.object = object;
+        }
+
+        private static ParsedValue parse(String key, String stored, String value, PropertyType type, Class<? extends Enum<?>> enumType, boolean secret) {
+            String trimmed = value.trim();
+            try {
+                switch (type) {
+                    case INT:
+                        return new ParsedValue(stored, type, Integer.parseInt(trimmed), null);
+                    case LONG:
+                        return new ParsedValue(stored, type, Long.parseLong(trimmed), null);
+                    case BOOLEAN:
+                        if (trimmed.equalsIgnoreCase("true")) {
+                            return new ParsedValue(stored, type, 1, null);
+                        } else if (trimmed.equalsIgnoreCase("false")) {
+                            return new ParsedValue(stored, type, 0, null);
+                        }
+                        throw new IllegalArgumentException("Expected true or false.");
+                    case DURATION:
+                        return new ParsedValue(stored, type, 0, parseDuration(trimmed));
+                    case SIZE:
+                        return new ParsedValue(stored, type, parseSize(trimmed), null);
+                    case ENUM:
+                        if (enumType == null) {
+                            throw new IllegalArgumentException("No enum type declared.");
+                        }
+                        try {
+                            return new ParsedValue(stored, type, 0, enumConstant(enumType, trimmed));
+                        } catch (IllegalArgumentException e) {
+                            return new ParsedValue(stored, type, 0, enumConstant(enumType, trimmed.toUpperCase()));
+                        }
+                    case LIST:
+                        List<String> items = new ArrayList<>();
+                        for (String item : trimmed.split(",")) {
+                            if (!item.trim().isEmpty()) {
+                                items.add(item.trim());
+                            }
+                        }
+                        return new ParsedValue(stored, type, 0, Collections.unmodifiableList(items));
+                    default:
+                        return new ParsedValue(stored, type, 0, value);
+                }
+            } catch (RuntimeException e) {
+                String shown = secret ? "" : " \"" + value + "\"";
+                throw new IllegalArgumentException("Property " + key + " is not a valid " + type.name().toLowerCase() + ":" + shown, e);
+            }
+        }
+
+        private static Enum<?> enumConstant(Class<? extends Enum<?>> enumType, String name) {
+            for (Enum<?> constant : enumType.getEnumConstants()) {
+                if (constant.name().equals(name)) {
+                    return constant;
+                }
+            }
+            throw new IllegalArgumentException("No enum constant " + enumType.getName() + "." + name);
+        }
+
+        private static Duration parseDuration(String text) {
+            if (text.startsWith("P") || text.startsWith("p") || text.startsWith("-P")) {
+                return Duration.parse(text);
+            }
+
+            int unitStart = unitStart(text);
+            long amount = Long.parseLong(text.substring(0, unitStart).trim());
+            String unit = text.substring(unitStart).trim().toLowerCase();
+            switch (unit) {
+                case "":
+                case "ms":
+                    return Duration.ofMillis(amount);
+                case "s":
+                    return Duration.ofSeconds(amount);
+                case "m":
+                    return Duration.ofMinutes(amount);
+                case "h":
+                    return Duration.ofHours(amount);
+                case "d":
+                    return Duration.ofDays(amount);
+                default:
+                    throw new IllegalArgumentException("Unknown duration unit " + unit);
+            }
+        }
+
+        private static long parseSize(String text) {
+            int unitStart = unitStart(text);
+            long amount = Long.parseLong(text.substring(0, unitStart).trim());
+            String unit = text.substring(unitStart).trim().toUpperCase();
+            switch (unit) {
+                case "":
+                case "B":
+                    return amount;
+                case "K":
+                case "KB":
+                    return Math.multiplyExact(amount, 1L << 10);
+                case "M":
+                case "MB":
+                    return Math.multiplyExact(amount, 1L << 20);
+                case "G":
+                case "GB":
+                    return Math.multiplyExact(amount, 1L << 30);
+                case "T":
+                case "TB":
+                    return Math.multiplyExact(amount, 1L << 40);
+                default:
+                    throw new IllegalArgumentException("Unknown size unit " + unit);
+            }
+        }
+
+        private static int unitStart(String text) {
+            int i = 0;
+            if (i < text.length() && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+                i++;
+            }
+            while (i < text.length() && Character.isDigit(text.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    /**
+     * A read-only copy of a {@link SmartProperties} taken at a point in time.
+     * Backed by plain hash maps that are never written after construction.
+     * Every layer is merged into one map, so a read is a single lookup,
+     * and placeholders are already resolved.
+     */
+    public static final class PropertiesView {
+        private final SmartProperties source;
+        private final Map<String, String> values;
+        // layers that take precedence over the file
+        private final Map<String, String> overrides;
+        // every layer merged, placeholders as written
+        private final Map<String, String> raw;
+        // raw with placeholders resolved; the same map when there are none
+        private Map<String, String> resolved;
+        // the names each property with placeholders refers to
+        private Map<String, List<String>> references = Collections.emptyMap();
+        // the reverse of references
+        private Map<String, List<String>> dependents = Collections.emptyMap();
+        private final Map<String, ParsedValue> parsed = new ConcurrentHashMap<>();
+        private volatile String contentHash;
+
+        private PropertiesView(SmartProperties source, Map<String, String> values, Map<String, String> defaults,
+                               Map<String, String> overrides, PropertiesView previous) {
+            this.source = source;
+            this.values = values;
+            this.overrides = overrides;
+            if (defaults.isEmpty() && overrides.isEmpty()) {
+                this.raw = values;
+            } else {
+                this.raw = new HashMap<>(defaults);
+                raw.putAll(values);
+                raw.putAll(overrides);
+            }
+            this.resolved = raw;
+            resolvePlaceholders(previous);
+
+            // keep whatever was parsed for properties that haven't changed
+            if (previous != null) {
+                for (Map.Entry<String, ParsedValue> entry : previous.parsed.entrySet()) {
+                    if (entry.getValue().stored.equals(stored(entry.getKey()))) {
+                        parsed.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+
+        private String stored(String key) {
+            return resolved.get(key);
+        }
+        /**
+         * Resolve the properties with placeholders whose value or references
+         * changed since the previous snapshot; reuse the rest.
+         */
+        private void resolvePlaceholders(PropertiesView previous) {
+            Set<String> pending = new HashSet<>();
+            if (previous == null) {
+                for (Map.Entry<String, String> entry : raw.entrySet()) {
+                    if (needsResolving(entry.getKey(), entry.getValue())) {
+                        pending.add(entry.getKey());
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                resolved = new HashMap<>(raw);
+                references = new HashMap<>();
+                for (String key : pending) {
+                    references.put(key, Placeholders.references(raw.get(key)));
+                }
+                dependents = dependents(references);
+            } else {
+                // references only change along with the value, so most of the graph carries over
+                List<String> changed = changedSince(previous);
+                references = previous.references;
+                for (String key : changed) {
+                    String value = raw.get(key);
+                    List<String> names = value != null && needsResolving(key, value) ? Placeholders.references(value) : null;
+                    if (!Objects.equals(names, references.get(key))) {
+                        if (references == previous.references) {
+                            references = new HashMap<>(previous.references);
+                        }
+                        if (names == null) {
+                            references.remove(key);
+                        } else {
+                            references.put(key, names);
+                        }
+                    }
+                }
+                if (references.isEmpty()) {
+                    return;
+                }
+                dependents = references == previous.references ? previous.dependents : dependents(references);
+
+                resolved = new HashMap<>(previous.resolved);
+                for (String key : dependentsOf(changed)) {
+                    String value = raw.get(key);
+                    if (value == null) {
+                        resolved.remove(key);
+                    } else {
+                        resolved.put(key, value);
+                        if (references.containsKey(key)) {
+                            pending.add(key);
+                        }
+                    }
+                }
+            }
+
+            // depth first without recursion, so long chains can't overflow the stack
+            Deque<String> stack = new ArrayDeque<>();
+            Set<String> onStack = new LinkedHashSet<>();
+            for (String start : new ArrayList<>(pending)) {
+                if (!pending.contains(start)) {
+                    continue;
+                }
+                stack.push(start);
+                onStack.add(start);
+                while (!stack.isEmpty()) {
+                    String key = stack.peek();
+                    String next = null;
+                    for (String name : references.get(key)) {
+                        if (pending.contains(name)) {
+                            if (onStack.contains(name)) {
+                                throw new IllegalArgumentException("Circular placeholder reference: " + cycle(onStack, name));
+                            }
+                            next = name;
+                            break;
+                        }
+                    }
+                    if (next != null) {
+                        stack.push(next);
+                        onStack.add(next);
+                    } else {
+                        resolved.put(key, Placeholders.substitute(raw.get(key), this::getProperty));
+                        pending.remove(key);
+                        onStack.remove(stack.pop());
+                    }
+                }
+            }
+        }
+
+        private boolean needsResolving(String key, String value) {
+            return Placeholders.hasPlaceholders(value) && !source.propertyDefs.isSecret(key);
+        }
+
+        // the properties whose raw value changed since the previous snapshot
+        private List<String> changedSince(PropertiesView previous) {
+            List<String> changed = new ArrayList<>();
+            for (Map.Entry<String, String> entry : raw.entrySet()) {
+                if (!entry.getValue().equals(previous.raw.get(entry.getKey()))) {
+                    changed.add(entry.getKey());
+                }
+            }
+            if (raw.size() - changed.size() != previous.raw.size()) {
+                for (String key : previous.raw.keySet()) {
+                    if (!raw.containsKey(key)) {
+                        changed.add(key);
+                    }
+                }
+            }
+            return changed;
+        }
+
+        // the given properties and everything that refers to them, directly or not
+        private Set<String> dependentsOf(List<String> changed) {
+            Deque<String> queue = new ArrayDeque<>(changed);
+            Set<String> dirty = new HashSet<>();
+            while (!queue.isEmpty()) {
+                String key = queue.pop();
+                if (dirty.add(key)) {
+                    queue.addAll(dependents.getOrDefault(key, Collections.emptyList()));
+                }
+            }
+            return dirty;
+        }
+
+        private static Map<String, List<String>> dependents(Map<String, List<String>> references) {
+            Map<String, List<String>> dependents = new HashMap<>();
+            for (Map.Entry<String, List<String>> entry : references.entrySet()) {
+                for (String name : entry.getValue()) {
+                    dependents.computeIfAbsent(name, k -> new ArrayList<>(2)).add(entry.getKey());
+                }
+            }
+            return dependents;
+        }
+
+        private static String cycle(Set<String> onStack, String name) {
+            StringBuilder sb = new StringBuilder();
+            boolean inCycle = false;
+            for (String key : onStack) {
+                inCycle |= key.equals(name);
+                if (inCycle) {
+                    sb.append(key).append(" -> ");
+                }
+            }
+            return sb.append(name).toString();
+        }
+
+        public String getProperty(String key) {
+            String value = resolved.get(key);
+            // only values from the file layer are encoded; secrets are never resolved,
+            // so the value is the one in the table even when carried over from the previous snapshot
+            if (value != null && source.propertyDefs.isSecret(key) && values.containsKey(key) && !overrides.containsKey(key)) {
+                return source.decodedSecretText(key, value);
+            }
+            return value;
+        }
+
+        public String getProperty(String key, String defaultValue) {
+            String value = getProperty(key);
+            return value == null ? defaultValue : value;
+        }
+
+        public boolean containsKey(String key) {
+            return resolved.containsKey(key);
+        }
+
+        public Set<String> stringPropertyNames() {
+            return Collections.unmodifiableSet(resolved.keySet());
+        }
+
+        public int size() {
+            return values.size();
+        }
+
+        /**
+         * A SHA-256 hash, in hex, of the properties as they would be stored.
+         * It doesn't depend on the order of the keys or the layout of the file,
+         * so the same properties always have the same hash.
+         */
+        public String contentHash() {
+            String hash = contentHash;
+            if (hash == null) {
+                hash = contentHash = hash(values);
+            }
+            return hash;
+        }
+
+        private static String hash(Map<String, String> values) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available.", e);
+            }
+            String[] keys = values.keySet().toArray(new String[0]);
+            Arrays.sort(keys);
+            for (String key : keys) {
+                update(digest, key);
+                update(digest, values.get(key));
+            }
+
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+
+        // length first, so "a" + "bc" and "ab" + "c" hash differently
+        private static void update(MessageDigest digest, String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+            digest.update(bytes);
+        }
+
+        public int getInt(String key) {
+            return (int) parsed(key, PropertyType.INT, null).number;
+        }
+
+        public int getInt(String key, int defaultValue) {
+            return containsKey(key) ? getInt(key) : defaultValue;
+        }
+
+        public long getLong(String key) {
+            return parsed(key, PropertyType.LONG, null).number;
+        }
+
+        public long getLong(String key, long defaultValue) {
+            return containsKey(key) ? getLong(key) : defaultValue;
+        }
+
+        public boolean getBoolean(String key) {
+            return parsed(key, PropertyType.BOOLEAN, null).number != 0;
+        }
+
+        public boolean getBoolean(String key, boolean defaultValue) {
+            return containsKey(key) ? getBoolean(key) : defaultValue;
+        }
+
+        public Duration getDuration(String key) {
+            return (Duration) parsed(key, PropertyType.DURATION, null).object;
+        }
+
+        public Duration getDuration(String key, Duration defaultValue) {
+            return containsKey(key) ? getDuration(key) : defaultValue;
+        }
+
+        public long getSize(String key) {
+            return parsed(key, PropertyType.SIZE, null).number;
+        }
+
+        public <E extends Enum<E>> E getEnum(String key, Class<E> enumType) {
+            return enumType.cast(parsed(key, PropertyType.ENUM, enumType).object);
+        }
+
+        @SuppressWarnings("unchecked")
+        public List<String> getList(String key) {
+            return (List<String>) parsed(key, PropertyType.LIST, null).object;
+        }
+
+        private ParsedValue parsed(String key, PropertyType type, Class<? extends Enum<?>> enumType) {
+            ParsedValue value = parsed.get(key);
+            if (value == null || value.type != type || (enumType != null && !enumType.isInstance(value.object))) {
+                String stored = stored(key);
+                if (stored == null) {
+                    throw new NoSuchElementException("Property " + key + " is not set.");
+                }
+                value = ParsedValue.parse(key, stored, getProperty(key), type, enumType, source.propertyDefs.isSecret(key));
+                parsed.put(key, value);
+            }
+            return value;
+        }
+
+        /**
+         * Parse every typed property that is set, so bad values are reported
+         * once, at load time, and later reads hit the cache.
+         */
+        private void validate() {
+            List<String> errors = new ArrayList<>();
+            for (PropertyDef def : source.propertyDefs.getDefs()) {
+                if (def.getType() == PropertyType.STRING || !containsKey(def.getName())) {
+                    continue;
+                }
+                try {
+                    parsed(def.getName(), def.getType(), def.getEnumType());
+                } catch (IllegalArgumentException e) {
+                    errors.add(e.getMessage());
+                }
+            }
+            if (!errors.isEmpty()) {
+                throw new IllegalArgumentException("Invalid properties: " + String.join("; ", errors));
+            }
+        }
+    }
+
+    /**
+     * Writes properties in the format of {@link Properties#store(Writer, String)}
+     * straight from a snapshot.
+     */
+    private static class PropertiesWriter {
+        private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+        private final BufferedWriter writer;
+        private final boolean escapeUnicode;
+        private final boolean deterministic;
+
+        private PropertiesWriter(BufferedWriter writer, boolean escapeUnicode, boolean deterministic) {
+            this.writer = writer;
+            this.escapeUnicode = escapeUnicode;
+            this.deterministic = deterministic;
+        }
+
+        private void write(PropertiesView view, String comments) throws IOException {
+            if (comments != null) {
+                writeComments(comments);
+            }
+            if (!deterministic) {
+                writer.write("#" + new Date().toString());
+                writer.newLine();
+            }
+
+            Map<String, String> values = deterministic ? new TreeMap<>(view.values) : view.values;
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                writeEntry(entry.getKey(), entry.getValue());
+                writer.newLine();
+            }
+            writer.flush();
+        }
+
+        private void writeEntry(String key, String value) throws IOException {
+            writeEscaped(key, true);
+            writer.write('=');
+            writeEscaped(value, false);
+        }
+
+        private void writeComments(String comments) throws IOException {
+            writer.write('#');
+            int len = comments.length();
+            for (int i = 0; i < len; i++) {
+                char c = comments.charAt(i);
+                if (c > '\u00ff') {
+                    writeUnicodeEscape(c);
+                } else if (c == '\n' || c == '\r') {
+                    writer.newLine();
+                    if (c == '\r' && i != len - 1 && comments.charAt(i + 1) == '\n') {
+                        i++;
+                    }
+                    if (i == len - 1 || (comments.charAt(i + 1) != '#' && comments.charAt(i + 1) != '!')) {
+                        writer.write('#');
+                    }
+                } else {
+                    writer.write(c);
+                }
+            }
+            writer.newLine();
+        }
+
+        private void writeEscaped(String text, boolean escapeSpace) throws IOException {
+            int len = text.length();
+            for (int i = 0; i < len; i++) {
+                char c = text.charAt(i);
+                if (c > 61 && c < 127) {
+                    if (c == '\\') {
+                        writer.write('\\');
+                    }
+                    writer.write(c);
+                    continue;
+                }
+                switch (c) {
+                    case ' ':
+                        if (i == 0 || escapeSpace) {
+                            writer.write('\\');
+                        }
+                        writer.write(' ');
+                        break;
+                    case '\t':
+                        writer.write("\\t");
+                        break;
+                    case '\n':
+                        writer.write("\\n");
+                        break;
+                    case '\r':
+                        writer.write("\\r");
+                        break;
+                    case '\f':
+                        writer.write("\\f");
+                        break;
+                    case '=':
+                    case ':':
+                    case '#':
+                    case '!':
+                        writer.write('\\');
+                        writer.write(c);
+                        break;
+                    default:
+                        if ((c < 0x0020 || c > 0x007e) && escapeUnicode) {
+                            writeUnicodeEscape(c);
+                        } else {
+                            writer.write(c);
+                        }
+                }
+            }
+        }
+
+        private void writeUnicodeEscape(char c) throws IOException {
+            writer.write('\\');
+            writer.write('u');
+            writer.write(HEX_DIGITS[(c >> 12) & 0xF]);
+            writer.write(HEX_DIGITS[(c >> 8) & 0xF]);
+            writer.write(HEX_DIGITS[(c >> 4) & 0xF]);
+            writer.write(HEX_DIGITS[c & 0xF]);
+        }
+    }
+
+    /**
+     * Parses the entry on one logical line read by {@link PropertiesLineReader}, following the same rules as
+     * {@link Properties#load(InputStream)}: ISO 8859-1, comments, line continuations and escapes.
+     * Loading uses Properties.load itself; this is for storing, which needs the key and value of each line
+     * to decide whether to copy it, and would otherwise need a new Properties and line buffer per line.
+     */
+    private static class PropertiesLineParser {
+        private ByteBuffer buffer;
+        private char[] line = new char[1024];
+        private int lineLength;
+
+        private PropertiesLineParser(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private PropertiesLineParser reset(ByteBuffer buffer) {
+            this.buffer = buffer;
+            return this;
+        }
+
+        private void parse(BiConsumer<String, String> consumer) {
+            while (readLine()) {
+                int keyLength = 0;
+                int valueStart = lineLength;
+                boolean hasSeparator = false;
+                boolean precedingBackslash = false;
+                while (keyLength < lineLength) {
+                    char c = line[keyLength];
+                    if ((c == '=' || c == ':') && !precedingBackslash) {
+                        valueStart = keyLength + 1;
+                        hasSeparator = true;
+                        break;
+                    } else if ((c == ' ' || c == '\t' || c == '\f') && !precedingBackslash) {
+                        valueStart = keyLength + 1;
+                        break;
+                    }
+                    precedingBackslash = c == '\\' && !precedingBackslash;
+                    keyLength++;
+                }
+
+                while (valueStart < lineLength) {
+                    char c = line[valueStart];
+                    if (c != ' ' && c != '\t' && c != '\f') {
+                        if (!hasSeparator && (c == '=' || c == ':')) {
+                            hasSeparator = true;
+                        } else {
+                            break;
+                        }
+                    }
+                    valueStart++;
+                }
+
+                consumer.accept(convert(0, keyLength), convert(valueStart, lineLength - valueStart));
+            }
+        }
+
+        /**
+         * Read the next logical line, skipping blank lines and comments
+         * and joining continued lines.
+         *
+         * @return false at the end of the buffer
+         */
+        private boolean readLine() {
+            lineLength = 0;
+            boolean skipWhitespace = true;
+            boolean appendedLineBegin = false;
+            boolean precedingBackslash = false;
+
+            while (buffer.hasRemaining()) {
+                char c = (char) (buffer.get() & 0xFF);
+                if (skipWhitespace) {
+                    if (c == ' ' || c == '\t' || c == '\f') {
+                        continue;
+                    }
+                    if (!appendedLineBegin && (c == '\r' || c == '\n')) {
+                        continue;
+                    }
+                    skipWhitespace = false;
+                    appendedLineBegin = false;
+                }
+
+                if (lineLength == 0 && (c == '#' || c == '!')) {
+                    // a comment; skip the rest of the line
+                    while (buffer.hasRemaining()) {
+                        byte b = buffer.get();
+                        if (b == '\r' || b == '\n') {
+                            break;
+                        }
+                    }
+                    skipWhitespace = true;
+                    continue;
+                }
+
+                if (c != '\n' && c != '\r') {
+                    append(c);
+                    precedingBackslash = c == '\\' && !precedingBackslash;
+                } else if (lineLength == 0) {
+                    skipWhitespace = true;
+                } else if (precedingBackslash && buffer.hasRemaining()) {
+                    // the line continues; drop the backslash and the next line's indent
+                    lineLength--;
+                    skipWhitespace = true;
+                    appendedLineBegin = true;
+                    precedingBackslash = false;
+                    if (c == '\r' && buffer.hasRemaining() && buffer.get(buffer.position()) == '\n') {
+                        buffer.get();
+                    }
+                } else {
+                    break;
+                }
+            }
+
+            if (lineLength == 0 && !precedingBackslash) {
+                return false;
+            }
+            if (precedingBackslash) {
+                lineLength--;
+            }
+            return true;
+        }
+
+        private void append(char c) {
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = c;
+        }
+
+        private String convert(int offset, int length) {
+            int end = offset + length;
+            int firstEscape = -1;
+            for (int i = offset; i < end; i++) {
+                if (line[i] == '\\') {
+                    firstEscape = i;
+                    break;
+                }
+            }
+            if (firstEscape < 0) {
+                return new String(line, offset, length);
+            }
+
+            StringBuilder sb = new StringBuilder(length);
+            sb.append(line, offset, firstEscape - offset);
+            int i = firstEscape;
+            while (i < end) {
+                char c = line[i++];
+                if (c != '\\' || i == end) {
+                    sb.append(c);
+                    continue;
+                }
+
+                c = line[i++];
+                if (c == 'u') {
+                    if (i + 4 > end) {
+                        throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+                    }
+                    int value = 0;
+                    for (int j = 0; j < 4; j++) {
+                        int digit = Character.digit(line[i++], 16);
+                        if (digit < 0) {
+                            throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+                        }
+                        value = (value << 4) + digit;
+                    }
+                    sb.append((char) value);
+                } else if (c == 't') {
+                    sb.append('\t');
+                } else if (c == 'r') {
+                    sb.append('\r');
+                } else if (c == 'n') {
+                    sb.append('\n');
+                } else if (c == 'f') {
+                    sb.append('\f');
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Reads a properties file one logical line at a time, keeping the exact bytes
+     * of each line, continuations and line ending included, so lines can be copied through untouched.
+     */
+    private static class PropertiesLineReader {
+        private final InputStream in;
+        private final PropertiesLineParser parser = new PropertiesLineParser(null);
+        private byte[] line = new byte[1024];
+        private int length;
+        private int endingStart;
+        // a byte read past a lone '\r'
+        private int pending = -1;
+        private boolean terminated;
+        // the first line ending seen, so added lines can match the file
+        private String lineSeparator;
+        // the entry on this line; the key is null for a comment or blank line
+        private String key;
+        private String value;
+
+        private PropertiesLineReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return false at the end of the file
+         */
+        private boolean next() throws IOException {
+            length = 0;
+            while (true) {
+                int lineStart = length;
+                int b = read();
+                if (b < 0) {
+                    if (length == 0) {
+                        return false;
+                    }
+                    parse();
+                    return true;
+                }
+                while (b >= 0 && b != '\n' && b != '\r') {
+                    append(b);
+                    b = read();
+                }
+                endingStart = length;
+                if (b == '\r') {
+                    append(b);
+                    int next = read();
+                    if (next == '\n') {
+                        append(next);
+                    } else {
+                        pending = next;
+                    }
+                } else if (b == '\n') {
+                    append(b);
+                }
+                terminated = b >= 0;
+                if (terminated && lineSeparator == null) {
+                    lineSeparator = new String(line, endingStart, length - endingStart, StandardCharsets.ISO_8859_1);
+                }
+                if (!terminated || !continues(lineStart, endingStart, lineStart == 0)) {
+                    parse();
+                    return true;
+                }
+            }
+        }
+
+        // an odd number of trailing backslashes continues the line, except on a comment
+        private boolean continues(int start, int end, boolean firstLine) {
+            int i = start;
+            while (i < end && (line[i] == ' ' || line[i] == '\t' || line[i] == '\f')) {
+                i++;
+            }
+            if (firstLine && (i == end || line[i] == '#' || line[i] == '!')) {
+                return false;
+            }
+            int backslashes = 0;
+            for (int j = end - 1; j >= i && line[j] == '\\'; j--) {
+                backslashes++;
+            }
+            return backslashes % 2 == 1;
+        }
+
+        private void parse() {
+            key = null;
+            value = null;
+            parser.reset(ByteBuffer.wrap(line, 0, length)).parse((k, v) -> {
+                key = k;
+                value = v;
+            });
+        }
+
+        private void writeTo(OutputStream out) throws IOException {
+            out.write(line, 0, length);
+        }
+
+        private void writeEndingTo(OutputStream out) throws IOException {
+            out.write(line, endingStart, length - endingStart);
+        }
+
+        private int read() throws IOException {
+            if (pending >= 0) {
+                int b = pending;
+                pending = -1;
+                return b;
+            }
+            return in.read();
+        }
+
+        private void append(int b) {
+            if (length == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[length++] = (byte) b;
+        }
+    }
+
+    /**
+     * Writes entries into a properties file without disturbing the rest of it.
+     * Lines whose value is unchanged are copied byte for byte, changed entries are replaced
+     * on the line where they stand, removed entries are dropped and new entries are appended;
+     * comments, blank lines and order are kept.
+     */
+    private static class PropertiesPatcher {
+        private final Map<String, String> entries;
+        private final boolean complete;
+        private final boolean deterministic;
+        // the keys that already have a line in the file
+        private final Set<String> inFile = new HashSet<>();
+        private boolean linesChange;
+        private byte[] lineSeparator = System.lineSeparator().getBytes(StandardCharsets.ISO_8859_1);
+        private boolean terminated = true;
+
+        private PropertiesPatcher(Map<String, String> entries, boolean complete, boolean deterministic) {
+            this.entries = entries;
+            this.complete = complete;
+            this.deterministic = deterministic;
+        }
+
+        private void scan(Path file) throws IOException {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                PropertiesLineReader reader = new PropertiesLineReader(in);
+                while (reader.next()) {
+                    if (reader.key != null) {
+                        linesChange |= !keeps(reader.key, reader.value);
+                        if (entries.containsKey(reader.key)) {
+                            inFile.add(reader.key);
+                        }
+                    }
+                    terminated = reader.terminated;
+                }
+                if (reader.lineSeparator != null) {
+                    lineSeparator = reader.lineSeparator.getBytes(StandardCharsets.ISO_8859_1);
+                }
+            }
+        }
+
+        // whether a line from the file can be copied as it is
+        private boolean keeps(String key, String value) {
+            if (!entries.containsKey(key)) {
+                return !complete;
+            }
+            return value.equals(entries.get(key));
+        }
+
+        /**
+         * @return true if no line in the file changes, so at most entries need appending
+         */
+        private boolean canAppend() {
+            return !linesChange;
+        }
+
+        private boolean hasAppends() {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                if (entry.getValue() != null && !inFile.contains(entry.getKey())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void append(OutputStream out) throws IOException {
+            OutputStream buffered = new BufferedOutputStream(out);
+            appendRemaining(buffered, terminated, inFile);
+            buffered.flush();
+        }
+
+        private void rewrite(Path file, OutputStream out) throws IOException {
+            OutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+            Set<String> written = new HashSet<>();
+            boolean terminated = true;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                PropertiesLineReader reader = new PropertiesLineReader(in);
+                while (reader.next()) {
+                    String key = reader.key;
+                    if (key == null || keeps(key, reader.value)) {
+                        reader.writeTo(buffered);
+                        terminated = reader.terminated;
+                        if (key != null) {
+                            written.add(key);
+                        }
+                    } else if (entries.get(key) != null) {
+                        // keep the line's own ending
+                        buffered.write(entry(key, entries.get(key)));
+                        reader.writeEndingTo(buffered);
+                        terminated = reader.terminated;
+                        written.add(key);
+                    }
+                }
+            }
+            appendRemaining(buffered, terminated, written);
+            buffered.flush();
+        }
+
+        private void appendRemaining(OutputStream out, boolean terminated, Set<String> written) throws IOException {
+            Map<String, String> remaining = new LinkedHashMap<>();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                if (entry.getValue() != null && !written.contains(entry.getKey())) {
+                    remaining.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (deterministic) {
+                remaining = new TreeMap<>(remaining);
+            }
+            for (Map.Entry<String, String> entry : remaining.entrySet()) {
+                if (!terminated) {
+                    out.write(lineSeparator);
+                    terminated = true;
+                }
+                out.write(entry(entry.getKey(), entry.getValue()));
+                out.write(lineSeparator);
+            }
+        }
+
+        private static byte[] entry(String key, String value) throws IOException {
+            StringWriter text = new StringWriter();
+            BufferedWriter writer = new BufferedWriter(text);
+            new PropertiesWriter(writer, true, false).writeEntry(key, value);
+            writer.flush();
+            return text.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static class SecretSlot {
+        private final String encoded;
+        private final char[] decoded;
+        private volatile String text;
+
+        private SecretSlot(String encoded, char[] decoded) {
+            this.encoded = encoded;
+            this.decoded = decoded;
+        }
+    }
+
+    /**
+     * Turns the plain value of a secret property into the text kept in the table
+     * and the file, and back.  Implementations must be thread safe.
+     */
+    public interface SecretCodec {
+
+        /**
+         * Base64, the way secrets have always been stored.
+         * This keeps them from being read at a glance, nothing more.
+         */
+        SecretCodec BASE64 = new Base64SecretCodec();
+
+        String encode(byte[] plain);
+
+        /**
+         * @throws IllegalArgumentException if the text isn't in this codec's format,
+         *                                  e.g. it was written by another codec; the property is then asked for again
+         * @throws IllegalStateException    if the text is in this codec's format but can't be decoded with its key
+         */
+        byte[] decode(String encoded);
+    }
+
+    private static class Base64SecretCodec implements SecretCodec {
+        @Override
+        public String encode(byte[] plain) {
+            return getEncoder().encodeToString(plain);
+        }
+
+        @Override
+        public byte[] decode(String encoded) {
+            return getDecoder().decode(encoded);
+        }
+    }
+
+    /**
+     * Encrypts secrets with AES-GCM, so they can't be read from the file without the key.
+     * <p>
+     * Each value is encrypted with a key derived from a passphrase (PBKDF2)
+     * or from a master key in a keystore, and a salt kept with the value.
+     * Derived keys are cached by salt and new values reuse the salt of the values read,
+     * so a file costs one derivation however many secrets it holds.
+     * Ciphers are kept one per thread.
+     * <p>
+     * The stored text is the Base64 of a version byte, the salt, the IV, then the ciphertext and tag.
+     */
+    public static final class AesGcmSecretCodec implements SecretCodec {
+        private static final byte VERSION = 1;
+        private static final int SALT_LENGTH = 16;
+        private static final int IV_LENGTH = 12;
+        private static final int TAG_LENGTH = 16;
+        private static final int HEADER_LENGTH = 1 + SALT_LENGTH + IV_LENGTH;
+        private static final int PBKDF2_ITERATIONS = 310000;
+        private static final SecureRandom RANDOM = new SecureRandom();
+        private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+            try {
+                return Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES/GCM is not available.", e);
+            }
+        });
+
+        private final Function<byte[], SecretKey> derivation;
+        private final Map<ByteBuffer, SecretKey> keys = new ConcurrentHashMap<>();
+        private final AtomicReference<byte[]> salt = new AtomicReference<>();
+
+        private AesGcmSecretCodec(Function<byte[], SecretKey> derivation) {
+            this.derivation = derivation;
+        }
+
+        /**
+         * Derive keys from a passphrase.  Deriving a key is deliberately slow (PBKDF2, SHA-256),
+         * which is why derived keys are cached.
+         */
+        public static AesGcmSecretCodec fromPassphrase(char[] passphrase) {
+            char[] copy = passphrase.clone();
+            return new AesGcmSecretCodec(salt -> {
+                PBEKeySpec spec = new PBEKeySpec(copy, salt, PBKDF2_ITERATIONS, 256);
+                try {
+                    byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+                    return new SecretKeySpec(key, "AES");
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("PBKDF2 is not available.", e);
+                } finally {
+                    spec.clearPassword();
+                }
+            });
+        }
+
+        /**
+         * Derive keys from the passphrase in an environment variable.
+         */
+        public static AesGcmSecretCodec fromEnvironment(String variable) {
+            String passphrase = System.getenv(variable);
+            if (passphrase == null || passphrase.isEmpty()) {
+                throw new IllegalStateException("Environment variable " + variable + " is not set.");
+            }
+            return fromPassphrase(passphrase.toCharArray());
+        }
+
+        /**
+         * Derive keys from a master key kept in a PKCS12 keystore.
+         */
+        public static AesGcmSecretCodec fromKeyStore(Path keyStore, char[] password, String alias) {
+            try (InputStream in = Files.newInputStream(keyStore)) {
+                KeyStore store = KeyStore.getInstance("PKCS12");
+                store.load(in, password);
+                KeyStore.Entry entry = store.getEntry(alias, new KeyStore.PasswordProtection(password));
+                if (!(entry instanceof KeyStore.SecretKeyEntry)) {
+                    throw new IllegalArgumentException("No secret key " + alias + " in keystore " + keyStore.toAbsolutePath());
+                }
+                return fromMasterKey(((KeyStore.SecretKeyEntry) entry).getSecretKey());
+            } catch (IOException | GeneralSecurityException e) {
+                throw new RuntimeException("Error reading keystore " + keyStore.toAbsolutePath(), e);
+            }
+        }
+
+        /**
+         * Create a PKCS12 keystore holding a new random master key,
+         * and a codec that uses it.
+         */
+        public static AesGcmSecretCodec createKeyStore(Path keyStore, char[] password, String alias) {
+            try {
+                KeyGenerator generator = KeyGenerator.getInstance("AES");
+                generator.init(256, RANDOM);
+                SecretKey master = generator.generateKey();
+
+                KeyStore store = KeyStore.getInstance("PKCS12");
+                store.load(null, password);
+                store.setEntry(alias, new KeyStore.SecretKeyEntry(master), new KeyStore.PasswordProtection(password));
+                Files.createDirectories(keyStore.toAbsolutePath().getParent());
+                try (OutputStream out = Files.newOutputStream(keyStore)) {
+                    store.store(out, password);
+                }
+                return fromMasterKey(master);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new RuntimeException("Error creating keystore " + keyStore.toAbsolutePath(), e);
+            }
+        }
+
+        // HMAC-SHA256 of the salt: cheap, since the master key is already random
+        private static AesGcmSecretCodec fromMasterKey(SecretKey master) {
+            SecretKeySpec macKey = new SecretKeySpec(master.getEncoded(), "HmacSHA256");
+            return new AesGcmSecretCodec(salt -> {
+                try {
+                    Mac mac = Mac.getInstance("HmacSHA256");
+                    mac.init(macKey);
+                    return new SecretKeySpec(mac.doFinal(salt), "AES");
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("HmacSHA256 is not available.", e);
+                }
+            });
+        }
+
+        @Override
+        public String encode(byte[] plain) {
+            byte[] salt = this.salt.get();
+            if (salt == null) {
+                byte[] fresh = new byte[SALT_LENGTH];
+                RANDOM.nextBytes(fresh);
+                this.salt.compareAndSet(null, fresh);
+                salt = this.salt.get();
+            }
+
+            byte[] encrypted = new byte[HEADER_LENGTH + plain.length + TAG_LENGTH];
+            encrypted[0] = VERSION;
+            System.arraycopy(salt, 0, encrypted, 1, SALT_LENGTH);
+            byte[] iv = new byte[IV_LENGTH];
+            RANDOM.nextBytes(iv);
+            System.arraycopy(iv, 0, encrypted, 1 + SALT_LENGTH, IV_LENGTH);
+
+            Cipher cipher = CIPHERS.get();
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key(salt), new GCMParameterSpec(TAG_LENGTH * 8, iv));
+                cipher.doFinal(plain, 0, plain.length, encrypted, HEADER_LENGTH);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Error encrypting secret.", e);
+            }
+            return getEncoder().encodeToString(encrypted);
+        }
+
+        @Override
+        public byte[] decode(String encoded) {
+            byte[] encrypted = getDecoder().decode(encoded);
+            if (encrypted.length < HEADER_LENGTH + TAG_LENGTH || encrypted[0] != VERSION) {
+                throw new IllegalArgumentException("Not an AES-GCM encrypted secret.");
+            }
+            byte[] salt = Arrays.copyOfRange(encrypted, 1, 1 + SALT_LENGTH);
+            // new values go with the ones already in the file
+            this.salt.compareAndSet(null, salt);
+
+            Cipher cipher = CIPHERS.get();
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key(salt), new GCMParameterSpec(TAG_LENGTH * 8, encrypted, 1 + SALT_LENGTH, IV_LENGTH));
+                return cipher.doFinal(encrypted, HEADER_LENGTH, encrypted.length - HEADER_LENGTH);
+            } catch (AEADBadTagException e) {
+                // a wrong passphrase or keystore, or a tampered value: not something to prompt over
+                throw new IllegalStateException("Secret could not be decrypted with this key.", e);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Error decrypting secret.", e);
+            }
+        }
+
+        private SecretKey key(byte[] salt) {
+            return keys.computeIfAbsent(ByteBuffer.wrap(salt), s -> derivation.apply(salt));
+        }
+    }
+
+    /**
+     * How hard store(File) works to get the data onto the disk before replacing the file.
+     */
+    public enum FsyncPolicy {
+        /**
+         * Leave flushing to the operating system.
+         */
+        NONE,
+        /**
+         * Sync the new file before it replaces the old one.
+         */
+        FILE,
+        /**
+         * Also sync the directory so the rename itself survives a crash.
+         * Where the directory can't be synced (Windows) a warning is logged.
+         */
+        FILE_AND_DIRECTORY
+    }
+
+    /**
+     * The properties touched by one load, reload, prompt or setProperty call.
+     * The old value is null for added properties and the new value is null for removed ones.
+     * Values are as kept in the table, so secrets are still encoded; use getProperty to read them.
+     */
+    public static final class ChangeSet {
+        private final Map<String, String> oldValues = new LinkedHashMap<>();
+        private final Map<String, String> newValues = new LinkedHashMap<>();
+
+        private ChangeSet() {
+        }
+
+        private static ChangeSet diff(Map<String, String> before, Map<String, String> after) {
+            ChangeSet changes = new ChangeSet();
+            for (Map.Entry<String, String> entry : after.entrySet()) {
+                String oldValue = before.get(entry.getKey());
+                if (!entry.getValue().equals(oldValue)) {
+                    changes.add(entry.getKey(), oldValue, entry.getValue());
+                }
+            }
+            for (Map.Entry<String, String> entry : before.entrySet()) {
+                if (!after.containsKey(entry.getKey())) {
+                    changes.add(entry.getKey(), entry.getValue(), null);
+                }
+            }
+            return changes;
+        }
+
+        private void add(String key, String oldValue, String newValue) {
+            oldValues.put(key, oldValue);
+            newValues.put(key, newValue);
+        }
+
+        private ChangeSet filter(Predicate<String> matcher) {
+            ChangeSet matching = new ChangeSet();
+            for (String key : oldValues.keySet()) {
+                if (matcher.test(key)) {
+                    matching.add(key, oldValues.get(key), newValues.get(key));
+                }
+            }
+            return matching;
+        }
+
+        public Set<String> getKeys() {
+            return Collections.unmodifiableSet(oldValues.keySet());
+        }
+
+        public boolean contains(String key) {
+            return oldValues.containsKey(key);
+        }
+
+        public String getOldValue(String key) {
+            return oldValues.get(key);
+        }
+
+        public String getNewValue(String key) {
+            return newValues.get(key);
+        }
+
+        public boolean isEmpty() {
+            return oldValues.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "ChangeSet" + getKeys();
+        }
+    }
+
+    private static class Listener {
+        private final Predicate<String> matcher;
+        private final Consumer<ChangeSet> consumer;
+
+        private Listener(Predicate<String> matcher, Consumer<ChangeSet> consumer) {
+            this.matcher = matcher;
+            this.consumer = Objects.requireNonNull(consumer, "Listener may not be null");
+        }
+    }
+
+    private static class ListenerExecutorHolder {
+        private static final Executor EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "SmartProperties-listeners");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static class FileWatcher implements Closeable {
+        private final SmartProperties properties;
+        private final File file;
+        private final long pollIntervalMs;
+        private long lastModified;
+        private long lastLength;
+        // null when the file is only polled. final, since close() runs on another thread than the loop.
+        private final WatchService watchService;
+        private final Thread thread;
+        private volatile boolean closed;
+
+        private FileWatcher(SmartProperties properties, File file, long pollIntervalMs) {
+            this.properties = properties;
+            this.file = file.getAbsoluteFile();
+            this.pollIntervalMs = pollIntervalMs;
+            this.lastModified = this.file.lastModified();
+            this.lastLength = this.file.length();
+            String events = System.getProperty("smartProperties.watchEvents");
+            this.watchService = events == null || Boolean.parseBoolean(events) ? openWatchService(this.file) : null;
+            this.thread = new Thread(this::run, "SmartProperties-watcher-" + this.file.getName());
+            thread.setDaemon(true);
+        }
+
+        private static WatchService openWatchService(File file) {
+            WatchService watchService = null;
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+                file.getParentFile().toPath().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY
+                );
+                return watchService;
+            } catch (IOException | UnsupportedOperationException e) {
+                // fall back to polling the file
+                closeWatchService(watchService, file);
+                return null;
+            }
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        private void run() {
+            while (!closed) {
+                try {
+                    if (watchService != null) {
+                        // the timeout doubles as the polling fallback
+                        // for file systems that drop events.
+                        WatchKey key = watchService.poll(pollIntervalMs, TimeUnit.MILLISECONDS);
+                        if (key != null) {
+                            key.pollEvents();
+                            key.reset();
+                        }
+                    } else {
+                        Thread.sleep(pollIntervalMs);
+                    }
+                    checkForChanges();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                } catch (Exception e) {
+                    log(SmartPropertiesLogger.Level.ERROR, "Error reloading properties from file " + file, e);
+                }
+            }
+        }
+
+        private void checkForChanges() {
+            long modified = file.lastModified();
+            long length = file.length();
+            if (modified == lastModified && length == lastLength) {
+                return;
+            }
+
+            lastModified = modified;
+            lastLength = length;
+            properties.reload();
+        }
+
+        private static void closeWatchService(WatchService watchService, File file) {
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    log(SmartPropertiesLogger.Level.WARN, "Error closing the watch service for " + file, e);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            thread.interrupt();
+            closeWatchService(watchService, file);
+        }
+    }
+
+    /**
+     * Receives what SmartProperties has to say.  Messages are only built
+     * for levels that are enabled, so a quiet logger costs next to nothing.
+     */
+    public interface SmartPropertiesLogger {
+
+        enum Level {
+            DEBUG, INFO, WARN, ERROR
+        }
+
+        boolean isEnabled(Level level);
+
+        /**
+         * Only called for enabled levels.
+         *
+         * @param error may be null
+         */
+        void log(Level level, String message, Throwable error);
+    }
+
+    /**
+     * Writes debug and info messages to System.out and the rest to System.err.
+     */
+    public static class ConsoleLogger implements SmartPropertiesLogger {
+        private final Level threshold;
+
+        public ConsoleLogger(Level threshold) {
+            this.threshold = Objects.requireNonNull(threshold, "Threshold may not be null");
+        }
+
+        @Override
+        public boolean isEnabled(Level level) {
+            return level.compareTo(threshold) >= 0;
+        }
+
+        @Override
+        public void log(Level level, String message, Throwable error) {
+            PrintStream stream = level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+            stream.println(message);
+            if (error != null) {
+                error.printStackTrace(stream);
+            }
+        }
+    }
+
+    public static class NoOpLogger implements SmartPropertiesLogger {
+        @Override
+        public boolean isEnabled(Level level) {
+            return false;
+        }
+
+        @Override
+        public void log(Level level, String message, Throwable error) {
+        }
+    }
+
+    /**
+     * Logs to the SLF4J logger "com.scarlatti.SmartProperties" without
+     * depending on SLF4J at compile time.
+     */
+    static final class Slf4jLogger implements SmartPropertiesLogger {
+        private final MethodHandle[] isEnabled = new MethodHandle[Level.values().length];
+        private final MethodHandle[] log = new MethodHandle[Level.values().length];
+
+        private Slf4jLogger() throws ReflectiveOperationException {
+            Class<?> loggerClass = Class.forName("org.slf4j.Logger");
+            Object logger = Class.forName("org.slf4j.LoggerFactory")
+                .getMethod("getLogger", String.class)
+                .invoke(null, SmartProperties.class.getName());
+
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            for (Level level : Level.values()) {
+                String method = level.name().toLowerCase(Locale.ROOT);
+                String isMethod = "is" + Character.toUpperCase(method.charAt(0)) + method.substring(1) + "Enabled";
+                isEnabled[level.ordinal()] = lookup.findVirtual(loggerClass, isMethod, MethodType.methodType(boolean.class))
+                    .bindTo(logger);
+                log[level.ordinal()] = lookup.findVirtual(loggerClass, method, MethodType.methodType(void.class, String.class, Throwable.class))
+                    .bindTo(logger);
+            }
+        }
+
+        // null when SLF4J isn't on the classpath
+        static SmartPropertiesLogger create() {
+            try {
+                return new Slf4jLogger();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean isEnabled(Level level) {
+            try {
+                return (boolean) isEnabled[level.ordinal()].invokeExact();
+            } catch (Throwable e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void log(Level level, String message, Throwable error) {
+            try {
+                log[level.ordinal()].invokeExact(message, error);
+            } catch (Throwable e) {
+                System.err.println(message);
+            }
+        }
+    }
+
+    /**
+     * Receives timings and counts from a {@link SmartProperties}.
+     * Times are in nanoseconds.  Called on the thread doing the work,
+     * so implementations must be thread safe and quick.
+     */
+    public interface SmartPropertiesMetrics {
+
+        enum Operation {
+            LOAD, STORE, RELOAD
+        }
+
+        /**
+         * A file was read, not counting any time spent prompting.
+         */
+        void loaded(long nanos, long bytes, int keys);
+
+        void stored(long nanos, long bytes, int keys);
+
+        void secretDecoded(long nanos);
+
+        /**
+         * Time blocked waiting for missing properties to be filled in.
+         */
+        void prompted(long nanos);
+
+        void reloaded(int changedKeys);
+
+        void failed(Operation operation);
+    }
+
+    /**
+     * The attributes {@link InMemoryMetrics} shows over JMX.  Times are in milliseconds.
+     */
+    public interface SmartPropertiesMetricsMXBean {
+        long getLoadCount();
+
+        double getLoadTimeMeanMillis();
+
+        double getLoadTimeMaxMillis();
+
+        double getLoadTime99thPercentileMillis();
+
+        long getStoreCount();
+
+        double getStoreTimeMeanMillis();
+
+        double getStoreTimeMaxMillis();
+
+        double getStoreTime99thPercentileMillis();
+
+        long getBytesRead();
+
+        long getBytesWritten();
+
+        int getKeyCount();
+
+        long getSecretDecodeCount();
+
+        double getSecretDecodeTimeMillis();
+
+        long getPromptCount();
+
+        double getPromptWaitTimeMillis();
+
+        long getReloadCount();
+
+        long getReloadedKeyCount();
+
+        long getLoadFailureCount();
+
+        long getStoreFailureCount();
+
+        long getReloadFailureCount();
+    }
+
+    /**
+     * Keeps metrics in memory: histograms for load and store times, totals for everything else.
+     * This is what every SmartProperties reports to unless told otherwise.
+     */
+    public static class InMemoryMetrics implements SmartPropertiesMetrics, SmartPropertiesMetricsMXBean {
+        private final Histogram loadTimes = new Histogram();
+        private final Histogram storeTimes = new Histogram();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong bytesWritten = new AtomicLong();
+        private volatile int keyCount;
+        private final AtomicLong secretDecodeCount = new AtomicLong();
+        private final AtomicLong secretDecodeNanos = new AtomicLong();
+        private final AtomicLong promptCount = new AtomicLong();
+        private final AtomicLong promptNanos = new AtomicLong();
+        private final AtomicLong reloadCount = new AtomicLong();
+        private final AtomicLong reloadedKeyCount = new AtomicLong();
+        private final AtomicLongArray failures = new AtomicLongArray(Operation.values().length);
+        private ObjectName objectName;
+
+        @Override
+        public void loaded(long nanos, long bytes, int keys) {
+            loadTimes.record(nanos);
+            bytesRead.addAndGet(bytes);
+            keyCount = keys;
+        }
+
+        @Override
+        public void stored(long nanos, long bytes, int keys) {
+            storeTimes.record(nanos);
+            bytesWritten.addAndGet(bytes);
+            keyCount = keys;
+        }
+
+        @Override
+        public void secretDecoded(long nanos) {
+            secretDecodeCount.incrementAndGet();
+            secretDecodeNanos.addAndGet(nanos);
+        }
+
+        @Override
+        public void prompted(long nanos) {
+            promptCount.incrementAndGet();
+            promptNanos.addAndGet(nanos);
+        }
+
+        @Override
+        public void reloaded(int changedKeys) {
+            reloadCount.incrementAndGet();
+            reloadedKeyCount.addAndGet(changedKeys);
+        }
+
+        @Override
+        public void failed(Operation operation) {
+            failures.incrementAndGet(operation.ordinal());
+        }
+
+        public Histogram getLoadTimes() {
+            return loadTimes;
+        }
+
+        public Histogram getStoreTimes() {
+            return storeTimes;
+        }
+
+        @Override
+        public long getLoadCount() {
+            return loadTimes.getCount();
+        }
+
+        @Override
+        public double getLoadTimeMeanMillis() {
+            return millis(loadTimes.getMeanNanos());
+        }
+
+        @Override
+        public double getLoadTimeMaxMillis() {
+            return millis(loadTimes.getMaxNanos());
+        }
+
+        @Override
+        public double getLoadTime99thPercentileMillis() {
+            return millis(loadTimes.getPercentileNanos(99));
+        }
+
+        @Override
+        public long getStoreCount() {
+            return storeTimes.getCount();
+        }
+
+        @Override
+        public double getStoreTimeMeanMillis() {
+            return millis(storeTimes.getMeanNanos());
+        }
+
+        @Override
+        public double getStoreTimeMaxMillis() {
+            return millis(storeTimes.getMaxNanos());
+        }
+
+        @Override
+        public double getStoreTime99thPercentileMillis() {
+            return millis(storeTimes.getPercentileNanos(99));
+        }
+
+        @Override
+        public long getBytesRead() {
+            return bytesRead.get();
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return bytesWritten.get();
+        }
+
+        @Override
+        public int getKeyCount() {
+            return keyCount;
+        }
+
+        @Override
+        public long getSecretDecodeCount() {
+            return secretDecodeCount.get();
+        }
+
+        @Override
+        public double getSecretDecodeTimeMillis() {
+            return millis(secretDecodeNanos.get());
+        }
+
+        @Override
+        public long getPromptCount() {
+            return promptCount.get();
+        }
+
+        @Override
+        public double getPromptWaitTimeMillis() {
+            return millis(promptNanos.get());
+        }
+
+        @Override
+        public long getReloadCount() {
+            return reloadCount.get();
+        }
+
+        @Override
+        public long getReloadedKeyCount() {
+            return reloadedKeyCount.get();
+        }
+
+        @Override
+        public long getLoadFailureCount() {
+            return failures.get(Operation.LOAD.ordinal());
+        }
+
+        @Override
+        public long getStoreFailureCount() {
+            return failures.get(Operation.STORE.ordinal());
+        }
+
+        @Override
+        public long getReloadFailureCount() {
+            return failures.get(Operation.RELOAD.ordinal());
+        }
+
+        /**
+         * Show these metrics in the platform MBean server as
+         * com.scarlatti:type=SmartProperties,name="name".
+         * A bean already registered under the same name is replaced.
+         */
+        public synchronized ObjectName registerMBean(String name) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = new ObjectName("com.scarlatti:type=SmartProperties,name=" + ObjectName.quote(name));
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+                server.registerMBean(new StandardMBean(this, SmartPropertiesMetricsMXBean.class, true), objectName);
+                this.objectName = objectName;
+                return objectName;
+            } catch (JMException e) {
+                throw new RuntimeException("Error registering SmartProperties metrics with JMX.", e);
+            }
+        }
+
+        public synchronized void unregisterMBean() {
+            if (objectName == null) {
+                return;
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (InstanceNotFoundException e) {
+                // someone else already took it down
+            } catch (JMException e) {
+                throw new RuntimeException("Error unregistering SmartProperties metrics from JMX.", e);
+            } finally {
+                objectName = null;
+            }
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1_000_000.0;
+        }
+    }
+
+    /**
+     * Counts times in buckets that double in size, starting at 1 microsecond,
+     * so percentiles are accurate to within a factor of two.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public void record(long nanos) {
+            long micros = Math.max(nanos / 1000, 0);
+            int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+            counts.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public long getMeanNanos() {
+            long count = getCount();
+            return count == 0 ? 0 : getTotalNanos() / count;
+        }
+
+        /**
+         * The upper bound of the bucket holding the given percentile, capped at the maximum.
+         */
+        public long getPercentileNanos(double percentile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts.get(bucket);
+                if (seen >= rank) {
+                    return Math.min((1L << bucket) * 1000, getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+    }
+
+    /**
+     * ${key} and ${key:default} references between property values.
+     * A reference to a property that isn't set, without a default, is left as written.
+     */
+    private static final class Placeholders {
+        private static final String PREFIX = "${";
+
+        static boolean hasPlaceholders(String value) {
+            return value.contains(PREFIX);
+        }
+
+        static List<String> references(String value) {
+            List<String> names = new ArrayList<>(2);
+            int start = value.indexOf(PREFIX);
+            while (start >= 0) {
+                int end = value.indexOf('}', start + PREFIX.length());
+                if (end < 0) {
+                    break;
+                }
+                names.add(name(value, start, end));
+                start = value.indexOf(PREFIX, end + 1);
+            }
+            return names;
+        }
+
+        static String substitute(String value, Function<String, String> lookup) {
+            StringBuilder sb = new StringBuilder(value.length() + 16);
+            int last = 0;
+            int start = value.indexOf(PREFIX);
+            while (start >= 0) {
+                int end = value.indexOf('}', start + PREFIX.length());
+                if (end < 0) {
+                    break;
+                }
+                sb.append(value, last, start);
+                String name = name(value, start, end);
+                String replacement = lookup.apply(name);
+                int nameEnd = start + PREFIX.length() + name.length();
+                if (replacement == null && nameEnd < end) {
+                    replacement = value.substring(nameEnd + 1, end);
+                }
+                if (replacement == null) {
+                    sb.append(value, start, end + 1);
+                } else {
+                    sb.append(replacement);
+                }
+                last = end + 1;
+                start = value.indexOf(PREFIX, last);
+            }
+            return sb.append(value, last, value.length()).toString();
+        }
+
+        private static String name(String value, int start, int end) {
+            int from = start + PREFIX.length();
+            int colon = value.indexOf(':', from);
+            return value.substring(from, colon >= 0 && colon < end ? colon : end);
+        }
+    }
+
+    /**
+     * The layers around the properties file, flattened once when the
+     * properties are built.  In order of precedence, lowest first:
+     * classpath defaults, {@code withDefaults}, extra files, the properties file itself,
+     * environment variables, system properties and command line arguments.
+     */
+    private static final class PropertyLayers {
+        private Properties defaults;
+        private final Map<String, String> defaultSources = new HashMap<>();
+        private final Map<String, String> overrides = new HashMap<>();
+        private final Map<String, String> overrideSources = new HashMap<>();
+
+        private void addDefault(String key, String value, String source) {
+            defaults.setProperty(key, value);
+            defaultSources.put(key, source);
+        }
+
+        private void addOverride(String key, String value, String source) {
+            overrides.put(key, value);
+            overrideSources.put(key, source);
+        }
+
+        private void addDefaults(Properties properties, String source) {
+            for (String name : properties.stringPropertyNames()) {
+                addDefault(name, properties.getProperty(name), source);
+            }
+        }
+    }
+
+    /**
+     * The property definitions of a {@link PropertiesBuilder}, indexed by name.
+     * Built once per builder and shared by every SmartProperties it builds.
+     * A later definition with the same name replaces an earlier one.
+     * The definitions handed out are copies, so changing one changes nothing here.
+     */
+    public static final class PropertyDefRegistry {
+        private static final PropertyDefRegistry EMPTY = new PropertyDefRegistry(Collections.emptyList());
+
+        private final List<PropertyDef> defs;
+        private final Map<String, Integer> indexByName;
+        private final BitSet secrets;
+        private volatile String fingerprint;
+
+        private PropertyDefRegistry(List<PropertyDef> propertyDefs) {
+            List<PropertyDef> defs = new ArrayList<>(propertyDefs.size());
+            Map<String, Integer> indexByName = new HashMap<>();
+            for (PropertyDef def : propertyDefs) {
+                Integer index = indexByName.get(def.getName());
+                if (index != null) {
+                    defs.set(index, new PropertyDef(def));
+                } else {
+                    indexByName.put(def.getName(), defs.size());
+                    defs.add(new PropertyDef(def));
+                }
+            }
+
+            BitSet secrets = new BitSet(defs.size());
+            for (int i = 0; i < defs.size(); i++) {
+                secrets.set(i, defs.get(i).getSecret());
+            }
+
+            this.defs = Collections.unmodifiableList(defs);
+            this.indexByName = indexByName;
+            this.secrets = secrets;
+        }
+
+        /**
+         * @return copies of the definitions in the order they were declared
+         */
+        public List<PropertyDef> getDefs() {
+            List<PropertyDef> copies = new ArrayList<>(defs.size());
+            for (PropertyDef def : defs) {
+                copies.add(new PropertyDef(def));
+            }
+            return Collections.unmodifiableList(copies);
+        }
+
+        /**
+         * @return a copy of the definition, or null if there is none by that name
+         */
+        public PropertyDef get(String name) {
+            Integer index = indexByName.get(name);
+            return index == null ? null : new PropertyDef(defs.get(index));
+        }
+
+        public boolean contains(String name) {
+            return indexByName.containsKey(name);
+        }
+
+        public boolean isSecret(String name) {
+            if (secrets.isEmpty()) {
+                return false;
+            }
+            Integer index = indexByName.get(name);
+            return index != null && secrets.get(index);
+        }
+
+        public int size() {
+            return defs.size();
+        }
+
+        /**
+         * Identifies these definitions: equal for registries built from the same definitions.
+         */
+        String fingerprint() {
+            String fingerprint = this.fingerprint;
+            if (fingerprint == null) {
+                StringBuilder sb = new StringBuilder();
+                for (PropertyDef def : defs) {
+                    sb.append(def.getName()).append('\0')
+                        .append(def.getDescription()).append('\0')
+                        .append(def.getSecret()).append('\0')
+                        .append(def.getType()).append('\0')
+                        .append(def.getEnumType() == null ? "" : def.getEnumType().getName()).append('\n');
+                }
+                fingerprint = sb.toString();
+                this.fingerprint = fingerprint;
+            }
+            return fingerprint;
+        }
+    }
+
+    /**
+     * The process-wide cache behind {@link PropertiesBuilder#shared(Path)}.
+     * Each file and set of definitions is loaded once, however many threads ask for it at the same time,
+     * and loaded again once the file's modification time or size changes.
+     * Entries are held softly, so the garbage collector may drop ones nobody is using.
+     */
+    private static final class SharedProperties {
+        private static final ConcurrentMap<String, Entry> CACHE = new ConcurrentHashMap<>();
+
+        private static final class Entry {
+            private final FutureTask<SoftReference<SmartProperties>> task;
+            private volatile long lastModified;
+            private volatile long length;
+
+            private Entry(PropertiesBuilder builder, File file) {
+                task = new FutureTask<>(() -> load(builder, file));
+            }
+
+            private SoftReference<SmartProperties> load(PropertiesBuilder builder, File file) {
+                SmartProperties properties = builder.fromFile(file);
+                lastModified = file.lastModified();
+                length = file.length();
+                return new SoftReference<>(properties);
+            }
+
+            // an entry that is still loading is as current as it gets
+            private boolean isCurrent(File file) {
+                return !task.isDone() || (lastModified == file.lastModified() && length == file.length());
+            }
+        }
+
+        private SharedProperties() {
+        }
+
+        static SmartProperties get(Path path, PropertiesBuilder builder) {
+            File file;
+            try {
+                file = path.toFile().getCanonicalFile();
+            } catch (IOException e) {
+                throw new RuntimeException("Error resolving properties file " + path.toAbsolutePath(), e);
+            }
+            String key = file.getPath() + '\n' + builder.registry().fingerprint();
+            if (builder.secretCodec != null) {
+                key += '\n' + builder.secretCodec.getClass().getName() + '@' + System.identityHashCode(builder.secretCodec);
+            }
+
+            while (true) {
+                Entry entry = CACHE.get(key);
+                if (entry == null || !entry.isCurrent(file)) {
+                    Entry fresh = new Entry(builder, file);
+                    boolean won = entry == null ? CACHE.putIfAbsent(key, fresh) == null : CACHE.replace(key, entry, fresh);
+                    if (!won) {
+                        // someone else got there first; use theirs
+                        continue;
+                    }
+                    entry = fresh;
+                    entry.task.run();
+                }
+
+                SmartProperties properties = await(key, entry);
+                if (properties != null) {
+                    return properties;
+                }
+                // collected; load it again
+                CACHE.remove(key, entry);
+            }
+        }
+
+        private static SmartProperties await(String key, Entry entry) {
+            try {
+                return entry.task.get().get();
+            } catch (ExecutionException e) {
+                CACHE.remove(key, entry);
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException("Error loading shared properties.", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for shared properties to load.", e);
+            }
+        }
+    }
+
+    public static class PropertyUiData {
+        private PropertyDef propertyDef;
+        private String value;
+
+        public PropertyUiData(PropertyDef propertyDef, String value) {
+            this.propertyDef = propertyDef;
+            this.value = value;
+        }
+
+        public PropertyUiData(PropertyUiData other) {
+            this.propertyDef = other.propertyDef;
+            this.value = other.value;
+        }
+
+        public PropertyDef getPropertyDef() {
+            return propertyDef;
+        }
+
+        public void setPropertyDef(PropertyDef propertyDef) {
+            this.propertyDef = propertyDef;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Asks for property values when some of them are missing.
+     * When several files load in parallel, prompt may be called from several threads at once;
+     * the built in providers show one prompt at a time.
+     */
+    public interface PromptProvider {
+
+        /**
+         * @param properties every defined property with its current value, null when missing;
+         *                   only the missing and invalid ones when prompting for missing properties only
+         * @param timeoutMs  how long to wait for an answer
+         * @return the properties with their new values, or null to leave everything as it is
+         */
+        List<PropertyUiData> prompt(List<PropertyUiData> properties, long timeoutMs);
+
+        /**
+         * @return true if the values given by this provider should be stored back to the file
+         */
+        default boolean persistValues() {
+            return true;
+        }
+    }
+
+    /**
+     * Shows the "Edit Properties" dialog.
+     */
+    public static class SwingPromptProvider implements PromptProvider {
+        @Override
+        public List<PropertyUiData> prompt(List<PropertyUiData> properties, long timeoutMs) {
+            log(SmartPropertiesLogger.Level.INFO, "Missing some properties.  Look for a dialog.");
+            return SwingUi.editProperties(properties, timeoutMs);
+        }
+    }
+
+    /**
+     * Asks for each missing property on the console.  Secret properties are read without echo.
+     * The console can't be interrupted, so the timeout does not apply.
+     */
+    public static class ConsolePromptProvider implements PromptProvider {
+        // one prompt at a time, however many properties are loading in parallel
+        private static final Object CONSOLE_LOCK = new Object();
+
+        @Override
+        public List<PropertyUiData> prompt(List<PropertyUiData> properties, long timeoutMs) {
+            synchronized (CONSOLE_LOCK) {
+                return promptOnConsole(properties);
+            }
+        }
+
+        private static List<PropertyUiData> promptOnConsole(List<PropertyUiData> properties) {
+            Console console = System.console();
+            if (console == null) {
+                log(SmartPropertiesLogger.Level.WARN, "No console available.  Not prompting for missing properties.");
+                return null;
+            }
+
+            console.printf("Missing some properties.  Enter them below (leave blank to skip).%n");
+            List<PropertyUiData> edited = new ArrayList<>();
+            for (PropertyUiData property : properties) {
+                if (property.getValue() != null) {
+                    continue;
+                }
+
+                PropertyDef def = property.getPropertyDef();
+                String value;
+                if (def.getSecret()) {
+                    char[] chars = console.readPassword("%s (%s): ", def.getName(), def.getDescription());
+                    value = chars == null ? null : new String(chars);
+                } else {
+                    value = console.readLine("%s (%s): ", def.getName(), def.getDescription());
+                }
+
+                if (value != null && !value.isEmpty()) {
+                    edited.add(new PropertyUiData(def, value));
+                }
+            }
+            return edited;
+        }
+    }
+
+    /**
+     * Fills missing properties from environment variables, for CI agents and containers.
+     * The variable for "dev.password" is DEV_PASSWORD.  Values are never stored to the file.
+     */
+    public static class EnvironmentPromptProvider implements PromptProvider {
+        @Override
+        public List<PropertyUiData> prompt(List<PropertyUiData> properties, long timeoutMs) {
+            List<PropertyUiData> edited = new ArrayList<>();
+            List<String> stillMissing = new ArrayList<>();
+            for (PropertyUiData property : properties) {
+                if (property.getValue() != null) {
+                    continue;
+                }
+
+                String name = property.getPropertyDef().getName();
+                String value = System.getenv(toVariableName(name));
+                if (value != null) {
+                    edited.add(new PropertyUiData(property.getPropertyDef(), value));
+                } else {
+                    stillMissing.add(name);
+                }
+            }
+
+            if (!stillMissing.isEmpty()) {
+                log(SmartPropertiesLogger.Level.WARN, () -> "Missing properties not found in the environment: " + stillMissing);
+            }
+            return edited;
+        }
+
+        @Override
+        public boolean persistValues() {
+            return false;
+        }
+
+        static String toVariableName(String propertyName) {
+            StringBuilder sb = new StringBuilder(propertyName.length());
+            for (int i = 0; i < propertyName.length(); i++) {
+                char c = propertyName.charAt(i);
+                sb.append(Character.isLetterOrDigit(c) ? Character.toUpperCase(c) : '_');
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Leaves missing properties missing.
+     */
+    public static class NoOpPromptProvider implements PromptProvider {
+        @Override
+        public List<PropertyUiData> prompt(List<PropertyUiData> properties, long timeoutMs) {
+            log(SmartPropertiesLogger.Level.INFO, "Not prompting for missing properties.");
+            return null;
+        }
+    }
+
+    /**
+     * Everything that touches AWT or Swing goes through here,
+     * so loading properties on a headless server never initializes either.
+     * The look and feel is set the first time a dialog is needed.
+     */
+    private static class SwingUi {
+        private static final String ICON_RESOURCE = "smart-properties-icon.png";
+        private static SoftReference<List<Image>> icons = new SoftReference<>(null);
+        // dialogs waiting for their turn, and whether one is open; only used on the event dispatch thread
+        private static final Deque<Runnable> queuedDialogs = new ArrayDeque<>();
+        private static boolean showingDialog;
+
+        static {
+            try {
+                boolean setLookAndFeel = true;
+                String prop = System.getProperty("smartProperties.setLookAndFeel");
+                if (prop != null) {
+                    setLookAndFeel = Boolean.parseBoolean(prop);
+                }
+                if (setLookAndFeel) {
+                    String lafClassName = UIManager.getSystemLookAndFeelClassName();
+                    if (!UIManager.getLookAndFeel().getClass().getName().equals(lafClassName)) {
+                        UIManager.setLookAndFeel(lafClassName);
+                    }
+                }
+            } catch (Exception e) {
+                log(SmartPropertiesLogger.Level.WARN, "Error setting the system look and feel.", e);
+            }
+        }
+
+        /**
+         * Show the "Edit Properties" dialog on the event dispatch thread, one dialog at a time.
+         * Other threads queue their dialog and wait for the answer without holding any lock,
+         * so the event dispatch thread can always get on with showing, timing out and closing dialogs.
+         *
+         * @return the edited properties, or null if the dialog was cancelled or timed out
+         */
+        private static List<PropertyUiData> editProperties(List<PropertyUiData> properties, long timeoutMs) {
+            if (SwingUtilities.isEventDispatchThread()) {
+                // can't wait for a turn here: the dialog ahead of us needs this thread to close.
+                boolean nested = showingDialog;
+                showingDialog = true;
+                try {
+                    return showDialog(properties, timeoutMs);
+                } finally {
+                    showingDialog = nested;
+                    if (!nested) {
+                        SwingUtilities.invokeLater(SwingUi::showQueuedDialogs);
+                    }
+                }
+            }
+
+            CompletableFuture<List<PropertyUiData>> edited = new CompletableFuture<>();
+            SwingUtilities.invokeLater(() -> {
+                queuedDialogs.add(() -> {
+                    try {
+                        edited.complete(showDialog(properties, timeoutMs));
+                    } catch (RuntimeException | Error e) {
+                        edited.completeExceptionally(e);
+                    }
+                });
+                showQueuedDialogs();
+            });
+            try {
+                return edited.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log(SmartPropertiesLogger.Level.ERROR, "Thread Interrupted while editing properties with \"Edit Properties\" dialog.", e);
+            } catch (ExecutionException e) {
+                log(SmartPropertiesLogger.Level.ERROR, "Error editing properties with \"Edit Properties\" dialog.", e.getCause());
+            }
+            return null;
+        }
+
+        // on the event dispatch thread; a dialog asked for while another is open waits for it to close
+        private static void showQueuedDialogs() {
+            if (showingDialog) {
+                return;
+            }
+            showingDialog = true;
+            try {
+                Runnable next;
+                while ((next = queuedDialogs.poll()) != null) {
+                    next.run();
+                }
+            } finally {
+                showingDialog = false;
+            }
+        }
+
+        /**
+         * Show the dialog and wait for it to close, on the event dispatch thread.
+         * A timer closes the dialog if nobody answers in time.
+         */
+        private static List<PropertyUiData> showDialog(List<PropertyUiData> properties, long timeoutMs) {
+            EditPropertiesTable editPropertiesTable = new EditPropertiesTable(properties);
+
+            // an undecorated frame gives the dialog a taskbar entry with our icon.
+            List<Image> icons = getIcons();
+            JFrame frame = new JFrame("Edit Properties");
+            frame.setUndecorated(true);
+            frame.setLocationRelativeTo(null);
+            frame.setIconImages(icons);
+            frame.setVisible(true);
+
+            JOptionPane pane = new JOptionPane(
+                editPropertiesTable.render(),
+                JOptionPane.INFORMATION_MESSAGE,
+                JOptionPane.OK_CANCEL_OPTION,
+                icons.size() > 2 ? new ImageIcon(icons.get(2)) : null,
+                new Object[]{"OK", "Cancel"},
+                "OK"
+            );
+            JDialog dialog = pane.createDialog(frame, "Edit Properties");
+
+            boolean[] timedOut = {false};
+            javax.swing.Timer timer = new javax.swing.Timer((int) Math.min(timeoutMs, Integer.MAX_VALUE), e -> {
+                timedOut[0] = true;
+                dialog.dispose();
+            });
+            timer.setRepeats(false);
+            timer.start();
+            try {
+                // modal, so this returns once the dialog is answered, closed or timed out
+                dialog.setVisible(true);
+            } finally {
+                timer.stop();
+                dialog.dispose();
+                frame.dispose();
+            }
+
+            if (timedOut[0]) {
+                log(SmartPropertiesLogger.Level.ERROR, "Timed out waiting " + timeoutMs + "ms for \"Edit Properties\" dialog.");
+                return null;
+            }
+            return "OK".equals(pane.getValue()) ? editPropertiesTable.getProperties() : null;
+        }
+
+        /**
+         * Get the icons, decoding them the first time.
+         * Held softly so they can be dropped under memory pressure.
+         */
+        private static synchronized List<Image> getIcons() {
+            List<Image> cached = icons.get();
+            if (cached == null) {
+                cached = loadIcons();
+                icons = new SoftReference<>(cached);
+            }
+            return cached;
+        }
+
+        private static List<Image> loadIcons() {
+            try (InputStream in = SmartProperties.class.getResourceAsStream(ICON_RESOURCE)) {
+                if (in == null) {
+                    // the icon is optional, e.g. when only this source file was copied into a project.
+                    return Collections.emptyList();
+                }
+
+                BufferedImage image = ImageIO.read(in);
+                return Arrays.asList(
+                    image.getScaledInstance(127, 127, Image.SCALE_SMOOTH),
+                    image.getScaledInstance(36, 63, Image.SCALE_SMOOTH),
+                    image.getScaledInstance(31, 31, Image.SCALE_SMOOTH),
+                    image.getScaledInstance(15, 15, Image.SCALE_SMOOTH)
+                );
+            } catch (Exception e) {
+                log(SmartPropertiesLogger.Level.WARN, "Error getting icon.", e);
+                return Collections.emptyList();
+            }
+        }
+    }
+
+    /**
+     * The table in the "Edit Properties" dialog.  Cells are drawn by a handful of shared
+     * renderers and editors instead of components of their own, and row heights are only
+     * measured as rows come into view, so thousands of properties open as fast as a few.
+     */
+    private static class EditPropertiesTable {
+        // show a filter box when there are more properties than this
+        private static final int FILTER_THRESHOLD = 10;
+
+        private final List<PropertyUiData> properties;
+        private final PropertiesTableModel model;
+        private final TableRowSorter<PropertiesTableModel> sorter;
+        private final JTable jTable;
+        // view rows whose height has been measured since the last filter change
+        private final BitSet measuredRows = new BitSet();
+        private final JComponent ui;
+
+        private EditPropertiesTable(List<PropertyUiData> properties) {
+            this.properties = properties;
+            this.model = new PropertiesTableModel(properties);
+            this.sorter = new TableRowSorter<>(model);
+            this.jTable = buildTable();
+            this.ui = buildUi();
+        }
+
+        private JTable buildTable() {
+            CstmCompEditor nameRenderer = new CstmCompEditor(new SwLabel(""));
+            CstmCompEditor textRenderer = new CstmCompEditor(new SwTextField(""));
+            CstmCompEditor textEditor = new CstmCompEditor(new SwTextField(""));
+            CstmCompEditor passwordRenderer = new CstmCompEditor(new SwPasswordField(""));
+            CstmCompEditor passwordEditor = new CstmCompEditor(new SwPasswordField(""));
+            CstmCompEditor descriptionRenderer = new CstmCompEditor(new SwTextArea(""));
+            CstmCompEditor descriptionEditor = new CstmCompEditor(new SwTextArea(""));
+
+            JTable jTable = new JTable(model) {
+                @Override
+                public TableCellEditor getCellEditor(int row, int column) {
+                    switch (convertColumnIndexToModel(column)) {
+                        case PropertiesTableModel.VALUE_COLUMN:
+                            return model.isSecret(convertRowIndexToModel(row)) ? passwordEditor : textEditor;
+                        case PropertiesTableModel.DESCRIPTION_COLUMN:
+                            return descriptionEditor;
+                        default:
+                            return super.getCellEditor(row, column);
+                    }
+                }
+
+                @Override
+                public TableCellRenderer getCellRenderer(int row, int column) {
+                    switch (convertColumnIndexToModel(column)) {
+                        case PropertiesTableModel.VALUE_COLUMN:
+                            return model.isSecret(convertRowIndexToModel(row)) ? passwordRenderer : textRenderer;
+                        case PropertiesTableModel.DESCRIPTION_COLUMN:
+                            return descriptionRenderer;
+                        default:
+                            return nameRenderer;
+                    }
+                }
+
+                @Override
+                public void changeSelection(int rowIndex, int columnIndex, boolean toggle, boolean extend) {
+                    super.changeSelection(rowIndex, columnIndex, toggle, extend);
+                    if (editCellAt(rowIndex, columnIndex)) {
+                        Component editor = getEditorComponent();
+                        editor.requestFocusInWindow();
 
-                // update the properties...
-                for (PropertyUiData property : properties) {
-                    setProperty(property.getPropertyDef().getName(), property.value);
+                        if (editor instanceof JTextComponent) {
+                            ((JTextComponent) editor).selectAll();
+                        }
+                    }
                 }
+            };
 
-                // can we save the properties during load??
-                if (file != null) {
-                    store(file);
-                }
+            jTable.setRowSorter(sorter);
+            sorter.addRowSorterListener(e -> measuredRows.clear());
+            jTable.putClientProperty("terminateEditOnFocusLost", true);
+            ((DefaultTableCellRenderer) jTable.getTableHeader().getDefaultRenderer()).setHorizontalAlignment(SwingConstants.CENTER);
+            jTable.getSelectionModel().setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+
+            // rows are mostly the same height, so start every row at the height of the first
+            if (model.getRowCount() > 0) {
+                jTable.setRowHeight(preferredRowHeight(jTable, 0));
             }
-        } catch (InterruptedException e) {
-            new RuntimeException("Thread Interrupted while editing properties with \"Edit Properties\" dialog.", e).printStackTrace();
-        } catch (ExecutionException e) {
-            new RuntimeException("Error editing properties with \"Edit Properties\" dialog.", e).printStackTrace();
-        } catch (TimeoutException e) {
-            responseFuture.cancel(true);
-            new IllegalStateException("Timed out waiting " + timeoutMs + "ms for \"Edit Properties\" dialog.", e).printStackTrace();
-        } finally {
-            executor.shutdown();
-            frame.dispose();
+            return jTable;
         }
-    }
-
-    private void optionallyDisplayBanner() {
-        if (displayBanner) {
-            String banner =
-                "      _______________________\n" +
-                    "     /   //=================/`\"-._\n" +
-                    "    |   ||=================|      D\n" +
-                    "jgs  \\___\\\\_________________\\__.-\"";
 
-            System.out.println();
-            System.out.println("      .:. Smart Properties .:.");
-            System.out.println(banner);
-            System.out.println("...::::::::::::::::::::::::::::.......");
-            System.out.println();
-        }
-    }
+        private JComponent buildUi() {
+            JScrollPane jScrollPane = new JScrollPane(jTable);
+            jScrollPane.getViewport().addChangeListener(e -> measureVisibleRows());
+            if (properties.size() <= FILTER_THRESHOLD) {
+                return jScrollPane;
+            }
 
-    private List<Image> getIcons() {
-        String imageString = "iVBORw0KGgoAAAANSUhEUgAAAQAAAAEACAYAAABccqhmAAAABHNCSVQICAgIfAhkiAAAAAlwSFlzAAALEwAACxMBAJqcGAAAHpVJREFUeJzt3Xl0U+edN/DvcyXbYOMVGghbIGRCk4ATtuCAQZK3mIR0svHOpNPJmTOn72S6JK1ttoSwdUlKMm3fLnPO9E1mupE3ydBMTxpSCF5lm80stoxNQjDeDTbGC17AtqR73z+wvEiWbEl31f19/vNjSfeXmO/Xj64lXYAQQgghhBBCCCGEEEIIIYQQQgghhBBCCCGEEEIIIVrClB5A70wm0zKO45YbBaFWEASn0vOokWA0DnIc15abm9sOQFB6nlBCBaCgFIvlKGPscaXn0JBWXhA+Y4z9vqCgoAhUBkGjAlBIqsmUD4MhRek5NOy0ALxSUFBQpvQgWmZQegA9ovCLYj4Dvrl48WK8+OKLJVarlXYDAaAdgMwo/BIQhIMJs2b906FDh+gcip+MSg+gJ5OFn+M4xMbGyjmSJjgcDvT29nq/AWPf6Gxv7wPwLdmGChG0A5DJVH7zL1q0CO/+53/KNZKmDAwMoLq6GkePHEFRUREEYYIdP2P/lJ+f/3v5p9MuKgAZTHXbTwUwNdVVVdi/fz86Ozvdv9XNGQxLc3NzrysxlxZxSg8Q6ug5v/geWrYMP/3ZzxAZGen+rTje4diuxExaRQUgIV/hZ4w2X8FYsGAB/uWllzzWeUH4ZlJS0nQFRtIkKgCJ+Ar/2rVrsXffPpknCj2ZmZmIjYsbt8ZxXGxUVFSqQiNpDhWABCYL/569exEeHi73WCHHaDRi7aOPen6D5zfIP402UQGIjMIvr0WLF3suCsLfyD+JNlEBiIjCL7/o6OiJluMmWiSeqABEQuFXBsd5/hMWJlokE6L/USKg8BOtogIIEoWfaBkVQBAo/ETrqAACROEnoYAKIAAUfhIqqAD8ROEnoYQKwA8UfhJqqACmiMJPQhEVwBRQ+EmoogKYBIWfhDIqAB8o/CTUUQF4QeEnekCfCjwBCr8usXST6WGe4zaBsRU8z88HY9MA9HNAPYAyzmg8nJubW6fwnKKiAnBD4dcdZrFYnuIEYS/PcStdi25vKEwG8A3e6fxlakrKMQHYHSpXJKKnAGNQ+PUlPT09KiUl5QOOsY8xJvyTyGDAqZSUlDf27t2r+fxo/j9ALBR+fTGZTHG805nPgP8VwN0ZA14tLS7+cNWqVWGiDycjKgBQ+PUmOTk53mAw5AJYG9QDMfZ8bGzs+1ouAd0XAIVfX5KTk+MjwsNzGbBajMdjwHNxMTH/vWXLFk3+I9F1AVD49cUVfgCrRH1gxp6+cePGR5mZmRGiPq4MdFsAFH59ycjISIgwGvMgdviHcYxttg8M/NlkMk2T4vGlossCoPDrS0ZGRoLdbs/z40x/YDhuk9Fg+FhLVybSXQFQ+PUlNTV1psPhyOcYWyHTITMiIyM/2bx5s8eFC9VIVwVA4deX1NTUmYIg5DHgETmPy4DU/v7+T9PT06PkPG4gdFMAFH59MZlMsyAI+XKH34VjzMzb7UfWrVs34ZVL1EIXBUDh150wI2P5AB5WdAqO2zBt2rQjmZmZMYrO4UPIFwCFX38Enn8YHJeo9BwAwID1Q0NDn6WlpcUqPctEQroAKPz6xHGcqp57MyDJ6XDkmkwm1V2zMGQLgMJP1ITjuDVGgyEvIyMjQelZxgrJAqDwE5Va5XA48k0m0yylB3EJuQKg8OtLf3+/0iP4hQGPcBxXkJmc/BWlZwFCrAAo/PrS2dmJDz/4YNwaYwyRkep+DQ7H2HJ7eHhhSkrKbMVnUXoAsVD49aWzsxM5OTno6OgYWWOMYdny5ch4PBMJM2cqON2UPASg6PENG+5WcoiQKAAKv750dnQgJycHTY2NI2uu8C9d+lUYjUZs3GhSfQkw4KtDBkNRSkrKPKVm0HwBUPj1ZbLwu2ilBDiOu58BRSaTab4ix1fioGKh8OtLR0cHsrOz0dTUNLI2UfhdtFICAO7jGLOmpaUtlPvAmi0ACr++dHR0ICc7G83NzSNrvsLvopUS4DjuXoHnrSaTaZGsx5XzYGKh8OvLjRs3kJ2V5Xf4XbRSAgAWcYxZU1NT75XrgJorAAq/vrS3tyMnOxstLS2ji4zhgWWJUwq/i1ZKgOO4hRAEq8lkuk+W48lxELFQ+PXFW/hvrngJp+b9M4YE//75aqUEAMwf3gncL/WBNFMAFH59cYX/6tWro4vD4e/76hb0JizDwb7HQrYEOI6bC0GwpqWlPSDpcaR8cLFQ+PWlvb0d2VlZXsPvEuolAGCO0+EoslgsD0l1ANUXAIVfX65fv47srCxcu3ZtdHGC8LuEeglwHHcXx1hRSkqKJJ9voOoCoPDrS1tbm1/hd+lNWIb3+pJCtgQAzBJ4viDdZBL9481UWwAUfn1pa2tDTnY2WltbRxenEH6XnoTlIV0CHMfN5A2GgpSUFFE/2lyVBUDh15fW1tagwu8S6iUAIJ4B+ampqWvEekDVFQCFX1/ECr+LDkogjnc689JMpiQxHkxVBUDh15fW1lZkZ2Whra1tdDGI8LuEeglwHBcjGAzHLBbLuqAfS4yBxEDh15dr164hOysL169fH10UIfwuoV4CAKI5xj4LtgRUUQAUfn2ROvwuOiiBGRxjh4N5A5HiBUDh15erV68iOysL7e3to4sShN/lTgmsxRDP/Lqfhkog3mAwvAvAv//AYYoWAIVfX1paWpCTnS1b+F16EhLxXn9SyJYAA1ItFoslkPsqVgAUfn1RKvwuoV4CHPCtAO8nPwq/vrS0tCA7Kws3btwYXZQx/C49CYn43bUlGHSGXgnwgrBp1apVYf7eT/YCoPDrS3NzM7KzssZ9eq8S4QeAwZYLKI9NxYG2pJArAY7jouLi4pb5fT8phvGGwj9KEASlR5Bcc3MzsrOzVRP+usjlAIBrMYkhWQKM5//G3/vIVgAU/vHsdrvHWnhEhAKTSKOpqQnZ2dnoVFn4XUKxBHjG4v29jywFQOH31NvT47EWFaWqi9oGrKmxETkqDr9LqJUAC2BbKXkBUPgnNu5jrobNnTtXgUnE1dTYiJycHHR2do4uqjD8LqFUAgy4MfmtxpO0ACj83lVXV3us3XuvbB8GK4nGxsY7236NhN8lVErACVzy9z6SFQCF37ub3d0TFsDKlaK+1VtWDQ0NyM7KQldX1+iiBsLvEgIl0DVr1qwv/L2TJAVA4fftyNGj4Hl+3NqCBQswf74iV4cKWn19PXKys9Hd3T26qKHwu2i6BATh40OHDjn9vZvoBUDh962vrw9/+tOfPNY3bdoExgJ6Obei6uvrkZOTo/nwu2i1BBjP/3sg9xO1ACj8k/u/v/kNbo4NC4Do6Gg8uXmzQhMFrr6uDjk5OeP/ezQcfhfNlYAgfJBntZ4N5K6iFQCFf3KfHj6MI0eOeKy/8MILmvsTYF2Iht9FQyXQ4OD5lwO9s0GMCSj8k/v08GH84he/8FhfsmQJtm7bBo5T/J3ZU1ZbW4ttW7fi5s2bo4shFH6XvojZsHWGISmyBUY/fjwcx2HBgoW43n4dt2/flmQ2AADPtxl4Pq3Aam2c/MYTC7oAKPy+9fb24te/+hUOHjzo8b3p06fjwIEDiI/3+wVciqmtrcXWnBz0jH0hUwiG30XFJdBq4HnLMavV7zP/YwV11onC7113dzc+/fRT/M9HH40PyzCO47Bv/36sWxf0x7rJ5sqVK9i2datuwj/W3B4bts8+hQg/f2U6HA4UF1vHvyoySAJwTRAES2Fhod9/93cXcAH4Cj9jDHv37dNN+AVBgN1uR09PD1qam1FdXY3q6mqvb/jhOA7bd+xAWlqazJMG7kpNDbZu3Yre3t7RRZ2EH4KA2GsnEOm4iR1LmxQtATHDDwRYACkWy1HG2ONiDKA3kZGR2LVrF9YmifKpzrKoqanBNp2H/6ZxFgDg7oEripUAz/NXOYPBkp+f/2XAD+LG73MAJpNpmYHjfirWAHpy/9KlOPDWW3jgwQeVHmXKLl++jO3btlH4h/UZE2BrcyIpoUfecwI838IZjZb8/PzL/t/Zx1x+34HjZPwJhIbY2Fh89+WX8etf/xrz5s1Tepwpo/CPD7/LtWlLcODSAgz6+bq7gP9EyPMtDkEw5+XliRp+IICnAOlm81qe406JPUgoWrJkCTIzM7HpiScwbdo0pcfxy5dffont27ahr69vdJHCP45MTweaHU6nxWq11vh3lKnxuwDSTKbVgsFwZuwax3FYuHCheFNpUHhEBGZERWHe/PlYsmQJVqxYoanf9mN9eekStm/fTuGfAilLgBeEJgCWwsLCK/49+tSJUgDx8fE4NMHr24n2XLp0CTso/H7dTYoS4AWhieM4c35+fq1/j+of7bz8jEjuiy++UM+2v1kb4QeCOycwY4KXgPM83yhH+AEqADLMFf7+/v7RRSXDH6WN8LsEUgJlp0+jsdHjVbwNxrAwWcIPUAEQAJ9//jm2b9uGW7dujS5S+P3mTwncCX+D+3KDw+k05+bm1gU9zBRRAejc5xcvYsf27RR+kUylBLyEv97hdJqtVmu9aMNMARWAjl28eBE7duyg8IvMVwl4Cz8vCLKHH6AC0K3q6mrspPBLdoiJSmCi8POCUMcLgrmwsNCjFeRABaBD1VVVFH4Jw+/iKoEBhzBx+Hm+1mAwKBZ+gApAd6qqqrBz587xr0en8Eumddq9+KDk0oThDwsPN+fl5QX8YR5iMCp5cCKvquHf/AMDA6OLFH7JMAh4sO53mNFZ6f6tK2Hh4ZZjx441yTaMF1QAOnHhwgW8unMnhV8mrvDP6Tzj/q0rDqfTnF9Q0CzbMD7QUwAdqKyspPCrI/w1AmCyWq2qCD9ABRDyKm02Cr8Kws8LwmUBMBcUFHheFFJBVAAhzGaz4dVXX8Xg4ODoIoVfMl7Dz/NfMsYsags/QAUQsioqKvAahV+2Q/oKv8FoVGX4AToJGJLKy8vx+q5dFH6Z+HjOfync6bR8VlR0TbZh/EQ7gBBTfv48hV8F4ReAL4x2u+WzkhLVhh+gHUBIOT8c/qGhodFFCr9kfIXf6XRaCkpKWmUbJkC0AwgR586do/CrIPy8IHwOwGy1WlUffoAKICScPXsWu19/ncIvE6/P+Xn+4vDZ/jbZhgkSPQXQOFf47Xb76CKFXzI+TvhVCxyXqqXwA7QD0LSzZ85Q+FUQfgGo4gyGFK2FH6AdgGadOXMGe3bvpvDLxFf4w4eGUo6WlrbLNoyIaAegQWVlZfSbXwXh5wXhgpbDD1ABaM7p06exZ/duOByO0UUKv2R8nPCrjLDbU7UcfoCeAmjKqVOnsG/vXgq/THyc8LM5BCEtv7T0hmzDSIQKQCMo/OoJPxhLtVqtgV/nW0XoKYAGnDx5ksKvgvALQAUYS83Pzw+J8ANUAKp34sQJ7N+3j8IvEx8n/MqNRmNIhR+gAlC1E8eP4wf791P4ZeLjhN/5sLCwtGPHjnXKNoxM6ByASh0fDr/TOeaD5Sn8kvEVfkN4eHoohh+gAlCl0tJS/PAHP6Dwy8THCb9zgw5HemlRUZdsw8iMCkBlSoqL8aMf/YjCLxMfJ/zOOp3O9NLS0m7ZhlEAFYCKlBQX44c//CF4nh9dpPBLxsfHeJ3hBSHDarWGdPgBOgmoGsUUflWEHzxfppfwA1QAqmC1WvEjCr9sh/TxnP80Mxp1E36AngIorqioCG/8+McUfpn4eM5/iuO4zLy8vJuyDaMCtANQEIVfPeEPDw9/XG/hB2gHoJiCggK8+cYbEARhdJHCLxkfJ/xORkyblnn06NEe2YZRESoABRTk5+PNN9+k8MvEx3P+E4NDQ5mFRUW9sg2jMlQAMsvPz8dPKPyyHdLHtv/4wMDAphMnTug2/AAVgKzy8vJw4Cc/ofDLxMcbe0oHBwef0Hv4ASoA2eTm5uKtAwdUEv5K1EUlyndAFYUfPF/CC8ITJ06c6JNtGBWjApBB7rFjeOuttyj8MvHxnL/YIQhPWq1WCv8wKgCJHTt2DG9T+GU7pM/wO50Ufjf0OgAJFRcXU/hVEH5eEIo4g+EJCr8nKgCJOBwO/OqXv6Twy8THc/5Co9G4OTc3t1+2YTSECkAiFRUV6OoafRs54zgKv0R8hX/6jBkUfh+oACRSXFw87uu0jE0wzHlI1hl0HX6gYPqMGZsPHz58S7ZhNIgKQAJOpxPHS0tHvmaMYe2aVTiQ1IfY7ouyzKDn8AuC0DU9MvIpCv/kqAAkUFlZiZs3R99Xcs899yAmJgbR08NkKQG9hP+hut9O9JsfvCBUUfinhgpAAu7b/+XLR8ModQnoKfyzO89O+H2O4/gJv0E8UAGIjOd5lJaUjHzNGEPiww+Pu41UJUDhJ/6iAhBZVVXVuLP/8+cvQGxsrMftxC4BCj8JBBWAyNy3/4mJ3t9wI1YJ6Dn8ixcvlm2GUEQFICJBEFAypgAYY1ie+LCPewRfAnoO/6OPPoqnn3lGtjlCERWAiC5evIiOjtFLx82dOxcJCQmT3i/QEtBz+NeuXYt9+/fDaKS3swSDCkBEntv/qYfT3xLQdfiTkrBv/36Eh4fLNkuoogIQiSAIKLZaR76eyvbf3VRLQM/hT0pKwr59+xAWFibbLKGMCkAkly5dQnt7+8jXc+bMwaxZ/gdmshLQc/gfe+wx7KXwi4oKQCTBbP/deSsBPYd/3bp1FH4JUAGIwH37D8Dv7b879xLQdfjXr8eevXvphJ8EqABEUFNTg9bW1pGvZ8+ejbvuuivox3WVQFSzVbfhX79+Pfbs2UPhlwgVgAh8vfY/WNHTw/B26nTM7ZfnXYRqCn9ycjJ2U/glRQUQpIm2/+6v/Q9WbGQYDqb2SV8Cagr/hg14ffduCr/EqACCVFdXh5aWlpGvv/KVuzBnzhzRjyN5Cago/Bs2bsTrr79O4ZcBFUCQPLf/0l1sIzYyDO+lSVACKgr/xo0bsWvXLgq/TKgAguS5/Zf2ZF3MdJFLQEXhN5lMeI3CLysqgCA0NDSgsbFx5OuZM2di7tx5kh9XtBJQU/jNZgq/AqgAgiDn9t/dSAn0VQf2ACoKv9lsxmuvvQaDwSDbLOQOKoAgiP3iH3/FTA/De+n9/peAisJvsVjwKoVfMVQAAWpqakJdXd3I1/Hx8ViwYIHsc/hdAkqFv9Yz/Cmpqdj56qsUfgVRAQSoZMzn/gHybv/dTbkElAx/l2f4d+zYQeFXGBVAgJTe/rtzlcC8fi8loKLwp6WlYefOnRR+FaACCMDVq1dRU1Mz8nVcXBzuueceBSe6I2Z6GA6mTVACKgp/eno6tu/YAY6jf3pqQD+FALhv/x9aptz2351HCagp/BkZ2LZ9O4VfRegnEQCPF/8E8d5/KYyUQF+VasKfkZGBbdu2UfhVhn4afmpra8OlS5dGvo6aMQOLFi1SbiAvXCUwQ+iT7Zjewv/4449jK4Vflegn4if37X9/Xx9+8x//gQuVleB5dV2RKiYyHAefi8M8e73kx/IW/szMTAq/itHrLv3kvv0HgNraK6itvYL4+Hhs3LgRj65NUs1HV7lK4Bsf1aMlbJEkx/Aa/k2bkJOTA8aYJMclwaNa9kN7ezsuXvT++vuuri58/PHHePONH6OkuBgOh0PG6bxzlcDcoXrRH9tb+J944gkKvwZQAfih1G37701fXx8++eQv+Le338KFykoIgiDxZJOLiQzHe8+LWwJew//kk8jKzqbwawAVgB/c3/wzmc7OTvzxj3/Ab//rv9Dd3S3RVFMnZgl4C/+TmzcjKyuLwq8RVABT1NnRgaqqqoDu+8UXn+PnP/spqi5cEHkq/4lRAt7Cv3nzZnz/+9+n8GsIFcAUlZaWBrWVv337Nv7wh9/jyJEjij8lCKYEvIX/qaeewvco/JpDBTBF/m7/vSksyMcH77+v+J8MR0rAjz8Reg3/176GV773PQq/BlEBTEF3dzdsNptoj1defh4ffvC+OnYCz02tBLyF/2t/+7d45ZVXKPwaRQUwBceD3P5PpLy8HP/94YeaKAFv4X/66afx8ssvU/g1jApgCsTa/rs7d+4sDn/yF0ke2x93XicQO2EJeA3/M8/gO9/9LoVf46gAJtHT04Py8nLJHr+kpMTj5cVKiI2M8CgBb+F/5tln8Z3vfIfCHwKoACZx4vhxyU/YHf7kL/jyy0uT31BiY0vAW/ifffZZfPvb36bwhwgqgElItf0fSxAEvHfwPdy8eVPyY01mRoQRrz90FStr/t0j/M899xy+ReEPKfRmIB96e3tx/vx5WY51+/YtvP/+/8NLL/2r7AHjeR6XL19Gpa0C1dXVuHXrFuLcbvP888/jpX+VfzYiLSoAH06dPCnrG3pqr1zB8eOlSE7eIPmxBEFATU0NbBUVqKq6gFu3bnm97ZYtW/AvL71E4Q9BVAA+yLH9d3f0yBEsX56I2NhY0R9bEATU1dXCVlGBCxcuoK/P94eFGI1G/OOLL+LrX/86hT9EUQF4cevWLZw5c0b24w4NDeHokb/i7/7+BdEes76+HjZbBSorK9Hb0+PztowxLFu2DCazGSaTCfHx8aLNQdSHCsALubf/Y50/fx4msyWoy4w3NjTAVmnDhcrKKb0T8cEHHxwJ/axZ8n2GIFEWFYAXSmz/XQRBQEF+Hr7+D9/w637NTU2w2WyorLShq6tr0tsvXboUZosFGzduxOzZswMdl2gYFcAEbt++jbKyMkVnsNlseHLzU5OeC7ja0oIKmw0XKm3o6OiY9HHvu+8+mC0WmEwm3H333WKNSzSKCmACZadPY2hoSNEZBEFAWdlppKdneHyvrfUaKmw2VNpsaG9vn/SxFi9ePBL6+fPnSzEu0SgqgAkouf0fq/z8eaSlpYMxhvb267DZbLBVVKCtrW3S+y5YuBAWsxlmiwULFy6UYVqiRVQAbgYHB3Hq1CmlxwAA3LhxA5988hdcqalBa2vrpO8cnDdvHszDoV+0aBH96Y5MigrAzZmyMgwODio9xojJPoh0zpw5I6FfsmQJhZ74hQrAjeLbf8aASX7T33XXXTCbzTCZzbj//vsp9CRgVABjDA0N4eTJk7IflwEYibyX8M+cOXMk9A888ACFnoiCCmCMs2fP4vbt27If19vv+/j4eJhMJpjMZixbtoxCT0RHBTBGidLbfwCxsbHYsGEDzBYLEhMT6Zp6RFJUAMPsdjtOnDihyLGjo6ORnJwMs8WCRx55BAaDQZE5iP5QAQw7f/48+vv7ZTteVFQUkpOTYTKbsXLlShiN9KMg8qN/dcPk2P5HRkZi3bp1MJnNWL16tWquIEz0iwoAgMPhwPHjxyV57IiIiJHQr1mzBhEREZIch5BAUAEAqKioQG9vr2iPFx4ejrVJSTCbzUhKSqLQE9WiAsCdC38Ey2g04tG1a2E2m/HYY49h+vTpIkxGiLSoAABcvXo1oPsZjUasXr0aJrMZ69atQ1RUlMiTESItKgAAc+fOxblz56Z0W4PBgJUrV8JkNmP9+vWIjo6WeDpCpEMFgDsXuDxy5IjXjwBjjGHFihUwm81I3rABMTExMk9IiDSoAHDnAzP27NmDt99+e+RkIGMMyxMTYTGbsWHjRsTFuX9SPiHaRwUwbN369Xh/1SpUXbiAoaEhfPWBB5CQkKD0WIRIigpgjGnTpmH1mjVKj0GIbOidJoToGBUAITpGBUCIjlEBEKJjVACE6BgVACE6RgVAiI5RARCiY1QAhOgYFQAhOkYFQIiO+V0AvMHAe6xNcikrQqTC8x7/HMEApwKjaJLfBeB0Onvc1/r7+ia9ci0hUpjosxwFoFuBUTTJ7wLo6+trAGAfu+ZwONDc3CzaUIRMVV1trccaE4TLCoyiSX4XwLlz5+zg+VPu62J8sCYh/rDb7SgrK/NY5wHlr/GmEYGdBGTskPvS//z5z4pcWJPo11//+lfcvHnTfbmL5/kCJebRooAKwMHzf+R5ftz/+c6ODvyfn/+czgUQWdTX1+Pdd97x/IYgvGO1Wgfkn0ibAroKZUNDw8B9ixcDjKWNXa+rq0NLSwtWrVpFl70ikqmoqMCuXbvQ19c3bp3n+U6nILzQ0NBwS6HRNCfgy9CuWrOm7HZ//5Ng7O6x63V1dTh69CjsQ0OIiY5GdEwMXeKaBK23txfl5eV499138e4772BwwPOXPAO+WVhUdFqB8TSLBXPn9PT0xbzdfhIcN9vbbTiOQ2RkJJUACYggCLDb7RiYIPDjbgf8qqCg4BWZxgoZQRUAAKSkpCQynj/mqwQIkdhvE2bO/N+HDh2iFwD5KegCAACTybTIYDAcYsBqMR6PkKnged7JOG5XQUHBWwDo7HMAAj4HMFZDQ0N3QkLC78IjInoYY2sA0JUxidSKDTz/bH5R0UdKD6JlouwAxsrMzIyxDw7+g8DYcwxYD2Ca2Mcg+sTzfCPjuKOCIPy+sLDwJOi3ftBEL4CxtmzZYujq6prH83ycwemks4AkIA6Ou83zfJvVaqXX+BNCCCGEEEIIIYQQQgghhBBCCCGEEEIIIYQQQgghRNf+P0bdu6Ye21tkAAAAAElFTkSuQmCC";
+            JTextField filter = new JTextField();
+            filter.getDocument().addDocumentListener(new DocumentListener() {
+                @Override
+                public void insertUpdate(DocumentEvent e) {
+                    applyFilter(filter.getText());
+                }
 
-        // create a buffered image
-        Base64.Decoder decoder = Base64.getDecoder();
-        byte[] bytes;
-        bytes = decoder.decode(imageString);
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes)) {
-            BufferedImage image = ImageIO.read(bis);
-            return Arrays.asList(
-                image.getScaledInstance(127, 127, Image.SCALE_SMOOTH),
-                image.getScaledInstance(36, 63, Image.SCALE_SMOOTH),
-                image.getScaledInstance(31, 31, Image.SCALE_SMOOTH),
-                image.getScaledInstance(15, 15, Image.SCALE_SMOOTH)
-            );
-        } catch (Exception e) {
-            System.err.println("Error getting icon.");
-            e.printStackTrace();
-            return Collections.emptyList();
-        }
-    }
+                @Override
+                public void removeUpdate(DocumentEvent e) {
+                    applyFilter(filter.getText());
+                }
 
-    private void decodeSecretProperties() {
-        // if a property with that name exists AND is marked as secret,
-        // decode it and change its getValue.
-        for (PropertyDef def : propertyDefs) {
-            if (getProperty(def.getName()) != null && def.getSecret()) {
-                String decodedValue = new String(getDecoder().decode(getProperty(def.getName())));
-                setProperty(def.getName(), decodedValue);
-            }
-        }
-    }
+                @Override
+                public void changedUpdate(DocumentEvent e) {
+                    applyFilter(filter.getText());
+                }
+            });
 
-    public void store(File file) {
-        store(file, "Generated with SmartProperties.  Delete or edit this file to reset.");
-    }
+            JPanel filterPanel = new JPanel(new BorderLayout(5, 0));
+            filterPanel.add(new JLabel("Filter:"), BorderLayout.WEST);
+            filterPanel.add(filter, BorderLayout.CENTER);
 
-    public void store(File file, String comments) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-            store(writer, comments);
-        } catch (Exception e) {
-            throw new RuntimeException("Error storing properties.", e);
+            JPanel panel = new JPanel(new BorderLayout(0, 5));
+            panel.add(filterPanel, BorderLayout.NORTH);
+            panel.add(jScrollPane, BorderLayout.CENTER);
+            return panel;
         }
-    }
-
-    @Override
-    public synchronized void store(Writer writer, String comments) throws IOException {
-        encodeSecretProperties();
-        super.store(writer, comments);
-        decodeSecretProperties();
-    }
 
-    @Override
-    public synchronized void store(OutputStream out, String comments) throws IOException {
-        encodeSecretProperties();
-        super.store(out, comments);
-        decodeSecretProperties();
-    }
+        private void applyFilter(String text) {
+            if (jTable.isEditing()) {
+                jTable.getCellEditor().stopCellEditing();
+            }
 
-    private void encodeSecretProperties() {
-        // if a property with that name exists AND is marked as secret,
-        // decode it and change its getValue.
-        for (PropertyDef def : propertyDefs) {
-            if (getProperty(def.getName()) != null && def.getSecret()) {
-                String encodedValue = new String(getEncoder().encode(getProperty(def.getName()).getBytes()));
-                setProperty(def.getName(), encodedValue);
+            String needle = text.trim().toLowerCase(Locale.ROOT);
+            if (needle.isEmpty()) {
+                sorter.setRowFilter(null);
+                return;
             }
+            sorter.setRowFilter(new RowFilter<PropertiesTableModel, Integer>() {
+                @Override
+                public boolean include(Entry<? extends PropertiesTableModel, ? extends Integer> entry) {
+                    PropertyDef def = entry.getModel().getPropertyDef(entry.getIdentifier());
+                    return matches(def.getName(), needle) || matches(def.getDescription(), needle);
+                }
+            });
         }
-    }
-
-    public boolean getPromptForMissingProperties() {
-        return promptForMissingProperties;
-    }
-
-    public void setPromptForMissingProperties(boolean promptForMissingProperties) {
-        this.promptForMissingProperties = promptForMissingProperties;
-    }
-
-    static class PropertyDef {
-        private String name;
-        private String description;
-        private boolean secret;
 
-        public PropertyDef() {
+        private static boolean matches(String text, String needle) {
+            return text != null && text.toLowerCase(Locale.ROOT).contains(needle);
         }
 
-        public PropertyDef(String name, String description, boolean secret) {
-            this.name = name;
-            this.description = description;
-            this.secret = secret;
-        }
+        private void measureVisibleRows() {
+            Rectangle visible = jTable.getVisibleRect();
+            int first = jTable.rowAtPoint(visible.getLocation());
+            if (first < 0) {
+                return;
+            }
+            int last = jTable.rowAtPoint(new Point(visible.x, visible.y + visible.height - 1));
+            if (last < 0) {
+                last = jTable.getRowCount() - 1;
+            }
 
-        public PropertyDef(PropertyDef other) {
-            this.name = other.name;
-            this.description = other.description;
-            this.secret = other.secret;
+            for (int row = first; row <= last; row++) {
+                if (!measuredRows.get(row)) {
+                    measuredRows.set(row);
+                    int rowHeight = preferredRowHeight(jTable, row);
+                    if (rowHeight != jTable.getRowHeight(row)) {
+                        jTable.setRowHeight(row, rowHeight);
+                    }
+                }
+            }
         }
 
-        public String getName() {
-            return name;
+        private static int preferredRowHeight(JTable jTable, int row) {
+            int rowHeight = 0;
+            for (int column = 0; column < jTable.getColumnCount(); column++) {
+                Component comp = jTable.prepareRenderer(jTable.getCellRenderer(row, column), row, column);
+                rowHeight = Math.max(rowHeight, comp.getPreferredSize().height);
+            }
+            return rowHeight;
         }
 
-        public void setName(String name) {
-            this.name = name;
+        public JComponent render() {
+            return ui;
         }
 
-        public String getDescription() {
-            return description;
-        }
+        public List<PropertyUiData> getProperties() {
+            // keep whatever is still being typed
+            if (jTable.isEditing()) {
+                jTable.getCellEditor().stopCellEditing();
+            }
 
-        public void setDescription(String description) {
-            this.description = description;
+            for (int row = 0; row < properties.size(); row++) {
+                properties.get(row).setValue(model.getEditedValue(row));
+            }
+            return properties;
         }
+    }
 
-        public boolean getSecret() {
-            return secret;
-        }
+    /**
+     * Name, value and description of each property, with the values as edited so far.
+     */
+    private static class PropertiesTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
 
-        public void setSecret(boolean secret) {
-            this.secret = secret;
-        }
-    }
+        static final int NAME_COLUMN = 0;
+        static final int VALUE_COLUMN = 1;
+        static final int DESCRIPTION_COLUMN = 2;
+        private static final String[] COLUMN_NAMES = {"Property Name", "Value", "Description"};
 
-    static class PropertyUiData {
-        private PropertyDef propertyDef;
-        private String value;
+        private final List<PropertyUiData> properties;
+        private final String[] values;
 
-        public PropertyUiData(PropertyDef propertyDef, String value) {
-            this.propertyDef = propertyDef;
-            this.value = value;
+        private PropertiesTableModel(List<PropertyUiData> properties) {
+            this.properties = properties;
+            this.values = new String[properties.size()];
+            for (int row = 0; row < values.length; row++) {
+                String value = properties.get(row).getValue();
+                values[row] = value != null ? value : "";
+            }
         }
 
-        public PropertyUiData(PropertyUiData other) {
-            this.propertyDef = other.propertyDef;
-            this.value = other.value;
+        PropertyDef getPropertyDef(int row) {
+            return properties.get(row).getPropertyDef();
         }
 
-        public PropertyDef getPropertyDef() {
-            return propertyDef;
+        boolean isSecret(int row) {
+            return getPropertyDef(row).getSecret();
         }
 
-        public void setPropertyDef(PropertyDef propertyDef) {
-            this.propertyDef = propertyDef;
+        String getEditedValue(int row) {
+            return values[row];
         }
 
-        public String getValue() {
-            return value;
+        @Override
+        public int getRowCount() {
+            return values.length;
         }
 
-        public void setValue(String value) {
-            this.value = value;
+        @Override
+        public int getColumnCount() {
+            return COLUMN_NAMES.length;
         }
-    }
-
-    private static class EditPropertiesTable {
-        private SwTable swTable;
-        private JComponent ui;
-        private List<PropertyUiData> properties;
 
-        private EditPropertiesTable(List<PropertyUiData> properties) {
-            this.properties = properties;
-            buildUi();
+        @Override
+        public String getColumnName(int column) {
+            return COLUMN_NAMES[column];
         }
 
-        private void buildUi() {
-            swTable = new SwTable(table -> {
-                for (PropertyUiData property : properties) {
-                    table.tr(new Tr(property.getPropertyDef().getName(), tr -> {
-                        tr.td(new Td(new SwLabel(property.getPropertyDef().getName())));
-
-                        final String text = property.getValue() != null ? property.getValue() : "";
-                        if (property.getPropertyDef().getSecret()) {
-                            tr.td(new Td(new SwPasswordField(text)));
-                        } else {
-                            tr.td(new Td(new SwTextField(text)));
-                        }
-
-                        tr.td(new Td(new SwTextArea(property.getPropertyDef().getDescription())));
-                    }));
-                }
-            });
-
-            this.ui = swTable.render();
+        @Override
+        public Object getValueAt(int row, int column) {
+            switch (column) {
+                case NAME_COLUMN:
+                    return getPropertyDef(row).getName();
+                case VALUE_COLUMN:
+                    return values[row];
+                default:
+                    return getPropertyDef(row).getDescription();
+            }
         }
 
-        public JComponent render() {
-            return ui;
+        // descriptions are "edited" only so they can be scrolled and copied
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return column != NAME_COLUMN;
         }
 
-        public List<PropertyUiData> getProperties() {
-            // rebuild the properties from what was last in the ui
-            for (Tr tr : swTable.getTrs()) {
-                properties.stream()
-                    .filter(p -> p.getPropertyDef().getName().equals(tr.getId()))
-                    .findFirst()
-                    .ifPresent(property -> property.setValue((String) tr.getTds().get(1).getUi().getValue()));
-
+        @Override
+        public void setValueAt(Object value, int row, int column) {
+            if (column == VALUE_COLUMN) {
+                values[row] = (String) value;
+                fireTableCellUpdated(row, column);
             }
-
-            return properties;
         }
     }
 
@@ -637,6 +4369,13 @@ public class SmartProperties extends Properties {
         }
     }
 
+    /**
+     * A table of arbitrary cell components, built row by row.
+     *
+     * @deprecated the properties editor now uses a table model with shared renderers instead;
+     * this will be removed in a later release.
+     */
+    @Deprecated
     public static class SwTable {
         private List<Tr> trs = new ArrayList<>();
         private JScrollPane jScrollPane = new JScrollPane();
@@ -730,6 +4469,10 @@ public class SmartProperties extends Properties {
         }
     }
 
+    /**
+     * @deprecated only used by {@link SwTable}.
+     */
+    @Deprecated
     public static class Tr {
         private List<Td> tds = new ArrayList<>();
         private String id;
@@ -752,6 +4495,10 @@ public class SmartProperties extends Properties {
         }
     }
 
+    /**
+     * @deprecated only used by {@link SwTable}.
+     */
+    @Deprecated
     public static class Td {
         private CellUiComp ui;
 
@@ -837,38 +4584,158 @@ public class SmartProperties extends Properties {
     public static class PropertiesBuilder {
         private Properties defaults;
         private boolean promptForMissingProperties = true;
+        private boolean promptMissingOnly = false;
         private List<PropertyDef> propertyDefs = new ArrayList<>();
         private boolean displayBanner = true;
         private long timeoutMs = 60000L;
+        private boolean watch = false;
+        private long watchIntervalMs = 2000L;
+        private Executor listenerExecutor;
+        private FsyncPolicy fsyncPolicy = FsyncPolicy.FILE;
+        private boolean lockFile = false;
+        private boolean deterministic = false;
+        private PromptProvider promptProvider;
+        private SecretCodec secretCodec;
+        private PropertyDefRegistry registry;
+        private SmartPropertiesMetrics metrics;
+        private boolean jmx = false;
+        private final List<String> classpathDefaults = new ArrayList<>();
+        private final List<Path> layerFiles = new ArrayList<>();
+        private boolean environment = false;
+        private boolean systemProperties = false;
+        private String[] args;
 
         private PropertiesBuilder() {
         }
 
         public SmartProperties fromFile(File file) {
-            return new SmartProperties(
-                defaults,
-                file,
-                promptForMissingProperties,
-                propertyDefs,
-                displayBanner,
-                timeoutMs
-            );
+            return new SmartProperties(this, file);
         }
 
         public SmartProperties fromFile(Path path) {
             return fromFile(path.toFile());
         }
 
+        /**
+         * Load on the given executor, so the caller can get on with something else.
+         * The future completes exceptionally if loading fails.
+         */
+        public CompletableFuture<SmartProperties> fromFileAsync(Path path, Executor executor) {
+            registry();
+            return CompletableFuture.supplyAsync(() -> fromFile(path), executor);
+        }
+
+        /**
+         * Load several files in parallel on the given executor with the same settings,
+         * returning the properties in the same order as the paths.
+         * Loading blocks on I/O and possibly on prompts, so pass an executor meant for that
+         * rather than the common pool.
+         * Prompts, if any are needed, are still shown one at a time.
+         */
+        public List<SmartProperties> loadAll(List<Path> paths, Executor executor) {
+            List<CompletableFuture<SmartProperties>> futures = new ArrayList<>(paths.size());
+            for (Path path : paths) {
+                futures.add(fromFileAsync(path, executor));
+            }
+
+            List<SmartProperties> loaded = new ArrayList<>(futures.size());
+            for (CompletableFuture<SmartProperties> future : futures) {
+                try {
+                    loaded.add(future.join());
+                } catch (CompletionException e) {
+                    // fail the way fromFile would
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            return loaded;
+        }
+
+        /**
+         * Like fromFile, but share one instance with everyone who asks for the same file
+         * with the same property definitions, until the file changes.
+         * The first caller's other settings (defaults, prompting...) are the ones used.
+         */
+        public SmartProperties shared(Path path) {
+            return SharedProperties.get(path, this);
+        }
+
+        public SmartProperties shared(File file) {
+            return shared(file.toPath());
+        }
+
         public PropertiesBuilder withDefaults(Properties properties) {
             defaults = properties;
             return this;
         }
 
+        /**
+         * Use a properties file on the classpath as defaults.
+         * Anything else sets the same property wins over it.
+         * A missing resource is skipped.
+         */
+        public PropertiesBuilder withClasspathDefaults(String resource) {
+            classpathDefaults.add(Objects.requireNonNull(resource, "Resource may not be null"));
+            return this;
+        }
+
+        /**
+         * Read defaults from another properties file, e.g. one shared by a team.
+         * Files added later win over earlier ones; the main file wins over all of them.
+         * These files are never written.  A missing file is skipped.
+         */
+        public PropertiesBuilder withFile(Path path) {
+            layerFiles.add(Objects.requireNonNull(path, "Path may not be null"));
+            return this;
+        }
+
+        public PropertiesBuilder withFile(File file) {
+            return withFile(file.toPath());
+        }
+
+        /**
+         * Let environment variables override declared properties.
+         * The variable for "db.password" is DB_PASSWORD.
+         */
+        public PropertiesBuilder withEnvironment() {
+            this.environment = true;
+            return this;
+        }
+
+        /**
+         * Let system properties override declared properties, e.g. -Ddb.password=...
+         */
+        public PropertiesBuilder withSystemProperties() {
+            this.systemProperties = true;
+            return this;
+        }
+
+        /**
+         * Let command line arguments of the form --key=value override any property.
+         * Other arguments are ignored.
+         */
+        public PropertiesBuilder withArgs(String... args) {
+            this.args = args.clone();
+            return this;
+        }
+
         public PropertiesBuilder promptForMissingProperties(boolean promptForMissingProperties) {
             this.promptForMissingProperties = promptForMissingProperties;
             return this;
         }
 
+        /**
+         * Prompt for just the missing properties, and those whose value doesn't parse,
+         * instead of all of them.  Only the values that changed are written back:
+         * new keys are appended and existing lines patched, so comments and order are kept.
+         */
+        public PropertiesBuilder promptMissingOnly() {
+            this.promptMissingOnly = true;
+            return this;
+        }
+
         public PropertiesBuilder displayBanner() {
             return withBanner(true);
         }
@@ -877,29 +4744,217 @@ public class SmartProperties extends Properties {
             return withBanner(false);
         }
 
+        /**
+         * Choose how missing properties are asked for.
+         * By default this depends on whether there is a display or a console.
+         */
+        public PropertiesBuilder promptProvider(PromptProvider promptProvider) {
+            this.promptProvider = promptProvider;
+            return this;
+        }
+
         public PropertiesBuilder timeoutMs(long timeoutMs) {
             this.timeoutMs = timeoutMs;
             return this;
         }
 
+        /**
+         * Keep the properties up to date with the file after loading.
+         * Changes are picked up without prompting.
+         */
+        public PropertiesBuilder watch() {
+            return watch(watchIntervalMs);
+        }
+
+        public PropertiesBuilder watch(long pollIntervalMs) {
+            this.watch = true;
+            this.watchIntervalMs = pollIntervalMs;
+            return this;
+        }
+
+        public PropertiesBuilder listenerExecutor(Executor listenerExecutor) {
+            this.listenerExecutor = listenerExecutor;
+            return this;
+        }
+
+        public PropertiesBuilder fsyncPolicy(FsyncPolicy fsyncPolicy) {
+            this.fsyncPolicy = Objects.requireNonNull(fsyncPolicy, "Fsync policy may not be null");
+            return this;
+        }
+
+        /**
+         * Choose how secrets are encoded, e.g. {@link AesGcmSecretCodec} to encrypt them.
+         * By default they are Base64 encoded.
+         */
+        public PropertiesBuilder secretCodec(SecretCodec secretCodec) {
+            this.secretCodec = Objects.requireNonNull(secretCodec, "Secret codec may not be null");
+            return this;
+        }
+
+        /**
+         * Store without the date comment and with keys in order,
+         * so storing the same properties always gives the same bytes.
+         */
+        public PropertiesBuilder deterministic() {
+            this.deterministic = true;
+            return this;
+        }
+
+        public PropertiesBuilder metrics(SmartPropertiesMetrics metrics) {
+            this.metrics = Objects.requireNonNull(metrics, "Metrics may not be null");
+            return this;
+        }
+
+        /**
+         * Show the default in-memory metrics over JMX, named after the properties file.
+         */
+        public PropertiesBuilder jmx() {
+            this.jmx = true;
+            return this;
+        }
+
+        /**
+         * Hold an advisory lock on a sibling ".lock" file while storing,
+         * so several processes sharing the file take turns writing it.
+         */
+        public PropertiesBuilder lockFile() {
+            this.lockFile = true;
+            return this;
+        }
+
         public PropertiesBuilder withBanner(boolean displayBanner) {
             this.displayBanner = displayBanner;
             return this;
         }
 
         public PropertiesBuilder property(String name, String description) {
-            propertyDefs.add(new PropertyDef(name, description, false));
-            return this;
+            return property(name, description, false);
         }
 
         public PropertiesBuilder property(String name, String description, boolean secret) {
             propertyDefs.add(new PropertyDef(name, description, secret));
+            registry = null;
             return this;
         }
 
         public PropertiesBuilder secretProperty(String name, String description) {
-            propertyDefs.add(new PropertyDef(name, description, true));
+            return property(name, description, true);
+        }
+
+        public PropertiesBuilder properties(List<PropertyDef> propertyDefs) {
+            for (PropertyDef def : propertyDefs) {
+                this.propertyDefs.add(new PropertyDef(def));
+            }
+            registry = null;
+            return this;
+        }
+
+        /**
+         * Declare a property whose value must parse as the given type.
+         * Read it back with getInt, getLong, getBoolean, getDuration, getSize or getList.
+         */
+        public PropertiesBuilder property(String name, String description, PropertyType type) {
+            if (type == PropertyType.ENUM) {
+                throw new IllegalArgumentException("Use enumProperty to declare an enum property.");
+            }
+            propertyDefs.add(new PropertyDef(name, description, false, type));
+            registry = null;
+            return this;
+        }
+
+        public <E extends Enum<E>> PropertiesBuilder enumProperty(String name, String description, Class<E> enumType) {
+            PropertyDef def = new PropertyDef(name, description, false, PropertyType.ENUM);
+            def.setEnumType(Objects.requireNonNull(enumType, "Enum type may not be null"));
+            propertyDefs.add(def);
+            registry = null;
             return this;
         }
+
+        private PropertyDefRegistry registry() {
+            if (registry == null) {
+                registry = new PropertyDefRegistry(propertyDefs);
+            }
+            return registry;
+        }
+
+        private PropertyLayers layers() {
+            PropertyLayers layers = new PropertyLayers();
+
+            if (classpathDefaults.isEmpty() && layerFiles.isEmpty()) {
+                // nothing to merge, so keep the caller's defaults as they are
+                layers.defaults = defaults;
+            } else {
+                layers.defaults = new Properties();
+                for (String resource : classpathDefaults) {
+                    Properties properties = readClasspathResource(resource);
+                    if (properties != null) {
+                        layers.addDefaults(properties, "classpath " + resource);
+                    }
+                }
+                if (defaults != null) {
+                    layers.addDefaults(defaults, "defaults");
+                }
+                for (Path path : layerFiles) {
+                    Properties properties = readFile(path);
+                    if (properties != null) {
+                        layers.addDefaults(properties, "file " + path.toAbsolutePath());
+                    }
+                }
+            }
+
+            for (PropertyDef def : registry().getDefs()) {
+                String name = def.getName();
+                if (environment) {
+                    String variable = EnvironmentPromptProvider.toVariableName(name);
+                    String value = System.getenv(variable);
+                    if (value != null) {
+                        layers.addOverride(name, value, "environment variable " + variable);
+                    }
+                }
+                if (systemProperties) {
+                    String value = System.getProperty(name);
+                    if (value != null) {
+                        layers.addOverride(name, value, "system property " + name);
+                    }
+                }
+            }
+
+            if (args != null) {
+                for (String arg : args) {
+                    int equals = arg.indexOf('=');
+                    if (arg.startsWith("--") && equals > 2) {
+                        layers.addOverride(arg.substring(2, equals), arg.substring(equals + 1), "command line");
+                    }
+                }
+            }
+
+            return layers;
+        }
+
+        private static Properties readClasspathResource(String resource) {
+            try (InputStream in = SmartProperties.class.getClassLoader().getResourceAsStream(resource)) {
+                if (in == null) {
+                    return null;
+                }
+                Properties properties = new Properties();
+                properties.load(in);
+                return properties;
+            } catch (IOException e) {
+                throw new RuntimeException("Error loading default properties from classpath resource " + resource, e);
+            }
+        }
+
+        private static Properties readFile(Path path) {
+            if (!Files.exists(path)) {
+                return null;
+            }
+            try (InputStream in = Files.newInputStream(path)) {
+                Properties properties = new Properties();
+                properties.load(in);
+                return properties;
+            } catch (IOException e) {
+                throw new RuntimeException("Error loading properties from file " + path.toAbsolutePath(), e);
+            }
+        }
     }
 }
@@ -6,6 +6,10 @@ import org.junit.Test
 
 import java.nio.file.Files
 import java.nio.file.Paths
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.Executor
+import java.util.function.Consumer
 
 /**
  * ______    __                         __           ____             __     __  __  _
@@ -40,6 +44,40 @@ class SmartPropertiesTest {
         assert props.size() == 4
     }
 
+    @Test
+    void "load and patch a file with escapes and continuations"() {
+        file.withWriter("ISO-8859-1") { writer ->
+            writer.write("# generated\r\n! also a comment\n")
+            for (int i = 0; i < 2000; i++) {
+                writer.write("key.${i} = value \\u00e9 ${i}\\\n    continued\\tthere\n")
+                writer.write("  spaced\\ key.${i}:colon=\\\\\r\n")
+            }
+            writer.write("last")
+        }
+
+        SmartProperties props = new SmartProperties()
+        props.setPromptForMissingProperties(false)
+        props.load(file)
+
+        Properties expected = new Properties()
+        file.withInputStream { expected.load(it) }
+        assert props.size() == expected.size()
+        assert props == expected
+        assert props.getProperty("key.0") == "value \u00e9 0continued\tthere"
+        assert props.getProperty("last") == ""
+
+        // storing back parses each line to decide whether to keep it as it is
+        String original = file.getText("ISO-8859-1")
+        props.setProperty("key.1", "changed")
+        props.store(file)
+        expected.setProperty("key.1", "changed")
+        Properties stored = new Properties()
+        file.withInputStream { stored.load(it) }
+        assert stored == expected
+        assert file.getText("ISO-8859-1").length() < original.length()
+        assert file.getText("ISO-8859-1").contains("  spaced\\ key.1:colon=\\\\\r\n")
+    }
+
     @Test
     void "save properties to file"() {
         SmartProperties props1 = new SmartProperties()
@@ -55,6 +93,485 @@ class SmartPropertiesTest {
         assert props1 == props2
     }
 
+    @Test
+    void "store replaces the file without leaving temp files"() {
+        SmartProperties props1 = new SmartProperties()
+        props1.load(properties())
+        props1.setFsyncPolicy(SmartProperties.FsyncPolicy.FILE_AND_DIRECTORY)
+        props1.setLockFile(true)
+        props1.store(file)
+
+        SmartProperties props2 = new SmartProperties()
+        props2.load(file)
+        assert props1 == props2
+        assert !file.parentFile.listFiles().any { it.name.endsWith(".tmp") }
+    }
+
+    @Test
+    void "store keeps the layout of the loaded file"() {
+        String original = "# settings\n\nprop1 = what\nlong=one \\\n    two\n! removed below\nprop2:who\nprop3=where\n"
+        file.text = original
+        SmartProperties props = SmartProperties.get()
+                .promptForMissingProperties(false)
+                .noBanner()
+                .fromFile(file)
+
+        props.store(file)
+        assert file.text == original
+
+        props.setProperty("prop2", "someone else")
+        props.remove("prop3")
+        props.setProperty("prop4", "new")
+        props.store(file)
+        assert file.text == "# settings\n\nprop1 = what\nlong=one \\\n    two\n! removed below\nprop2=someone else\nprop4=new\n"
+        assert props.getProperty("long") == "one two"
+
+        // only adding a key still replaces the file rather than appending to it
+        Object fileKey = Files.readAttributes(file.toPath(), java.nio.file.attribute.BasicFileAttributes).fileKey()
+        props.setProperty("prop5", "added")
+        props.store(file)
+        assert file.text.endsWith("prop4=new\nprop5=added\n")
+        if (fileKey != null) {
+            assert Files.readAttributes(file.toPath(), java.nio.file.attribute.BasicFileAttributes).fileKey() != fileKey
+        }
+
+        SmartProperties fresh = new SmartProperties()
+        fresh.setDeterministic(true)
+        fresh.load("b=2\na=1")
+        File copy = new File(file.parentFile, "copy.properties")
+        fresh.store(copy, null)
+        byte[] first = copy.bytes
+        fresh.store(copy, null)
+        assert copy.bytes == first
+        assert copy.text == "a=1" + System.lineSeparator() + "b=2" + System.lineSeparator()
+    }
+
+    @Test
+    void "content hash ignores key order and unchanged properties are not stored again"() {
+        SmartProperties one = new SmartProperties()
+        one.load("a=1\nb=2")
+        SmartProperties two = new SmartProperties()
+        two.load("b=2\n\n# comment\na = 1")
+        assert one.contentHash() == two.contentHash()
+        assert one.contentHash() ==~ /[0-9a-f]{64}/
+
+        file.text = "b=2\na=1\n"
+        file.setLastModified(1000L)
+        SmartProperties props = SmartProperties.get()
+                .promptForMissingProperties(false)
+                .deterministic()
+                .noBanner()
+                .fromFile(file)
+        assert props.contentHash() == one.contentHash()
+
+        props.store(file)
+        assert file.lastModified() == 1000L
+        assert props.getMetrics().storeCount == 0
+
+        props.setProperty("a", "changed")
+        assert props.contentHash() != one.contentHash()
+        props.store(file)
+        assert file.text == "b=2\na=changed\n"
+        assert props.getMetrics().storeCount == 1
+    }
+
+    @Test
+    void "store encodes secrets without changing the loaded values"() {
+        file.text = "prop1=what\nprop2=" + Base64.encoder.encodeToString("p=ss word".bytes)
+        SmartProperties props = SmartProperties.get()
+                .promptForMissingProperties(false)
+                .noBanner()
+                .property("prop1", "the first")
+                .secretProperty("prop2", "the password")
+                .fromFile(file)
+        assert props.getProperty("prop2") == "p=ss word"
+
+        StringWriter writer = new StringWriter()
+        props.store(writer, "comment")
+        assert props.getProperty("prop2") == "p=ss word"
+
+        Properties raw = new Properties()
+        raw.load(new StringReader(writer.toString()))
+        assert new String(Base64.decoder.decode(raw.getProperty("prop2"))) == "p=ss word"
+        assert raw.getProperty("prop1") == "what"
+    }
+
+    @Test
+    void "secrets are encrypted with an AES-GCM codec from a keystore or passphrase"() {
+        File keyStore = new File(file.parentFile, "secrets.p12")
+        keyStore.delete()
+        SmartProperties.SecretCodec codec = SmartProperties.AesGcmSecretCodec.createKeyStore(keyStore.toPath(), "changeit".toCharArray(), "smart")
+        file.text = "prop1=what\n"
+        SmartProperties props = SmartProperties.get()
+                .promptForMissingProperties(false)
+                .noBanner()
+                .secretProperty("password", "the password")
+                .secretCodec(codec)
+                .fromFile(file)
+        props.setProperty("password", "p=ss word")
+        String encrypted = props.get("password")
+        props.setProperty("password", "p=ss word")
+        assert props.get("password") == encrypted
+        props.store(file)
+
+        assert !file.text.contains(Base64.encoder.encodeToString("p=ss word".bytes))
+        SmartProperties again = SmartProperties.get()
+                .promptForMissingProperties(false)
+                .noBanner()
+                .secretProperty("password", "the password")
+                .secretCodec(SmartProperties.AesGcmSecretCodec.fromKeyStore(keyStore.toPath(), "changeit".toCharArray(), "smart"))
+                .fromFile(file)
+        assert again.getProperty("password") == "p=ss word"
+
+        SmartProperties.SecretCodec passphrase = SmartProperties.AesGcmSecretCodec.fromPassphrase("correct horse".toCharArray())
+        String encoded = passphrase.encode("secret".bytes)
+        assert encoded != passphrase.encode("secret".bytes)
+        assert new String(SmartProperties.AesGcmSecretCodec.fromPassphrase("correct horse".toCharArray()).decode(encoded)) == "secret"
+        try {
+            SmartProperties.AesGcmSecretCodec.fromPassphrase("wrong".toCharArray()).decode(encoded)
+            assert false
+        } catch (IllegalStateException e) {
+            assert e.message.contains("could not be decrypted")
+        }
+    }
+
+    @Test
+    void "secrets that can't be decoded after switching codecs are asked for again"() {
+        File keyStore = new File(file.parentFile, "switch.p12")
+        keyStore.delete()
+        SmartProperties.SecretCodec codec = SmartProperties.AesGcmSecretCodec.createKeyStore(keyStore.toPath(), "changeit".toCharArray(), "smart")
+        file.text = "name=me\npw=" + Base64.encoder.encodeToString("old".bytes) + "\n"
+        List<SmartProperties.PropertyUiData> prompted = []
+        SmartProperties.PromptProvider provider = new SmartProperties.PromptProvider() {
+            @Override
+            List<SmartProperties.PropertyUiData> prompt(List<SmartProperties.PropertyUiData> missing, long timeoutMs) {
+                prompted.addAll(missing)
+                missing.collect { new SmartProperties.PropertyUiData(it.propertyDef, it.value ?: "new") }
+            }
+        }
+        SmartProperties props = SmartProperties.get()
+                .property("name", "the name")
+                .secretProperty("pw", "the password")
+                .secretCodec(codec)
+                .promptProvider(provider)
+                .noBanner()
+                .fromFile(file)
+
+        assert prompted.find { it.propertyDef.name == "pw" }.value == null
+        assert props.getProperty("pw") == "new"
+        assert !file.text.contains(Base64.encoder.encodeToString("old".bytes))
+        assert new String(codec.decode(props.get("pw") as String)) == "new"
+
+        // the right format with the wrong key fails rather than asking again and overwriting the value
+        String stored = file.text
+        prompted.clear()
+        try {
+            SmartProperties.get()
+                    .property("name", "the name")
+                    .secretProperty("pw", "the password")
+                    .secretCodec(SmartProperties.AesGcmSecretCodec.fromPassphrase("wrong".toCharArray()))
+                    .promptProvider(provider)
+                    .noBanner()
+                    .fromFile(file)
+            assert false
+        } catch (RuntimeException e) {
+            assert e.cause instanceof IllegalStateException
+            assert e.cause.message.contains("could not be decrypted")
+        }
+        assert prompted.isEmpty()
+        assert file.text == stored
+    }
+
+    @Test
+    void "secrets stay encoded until they are read"() {
+        String encoded = Base64.encoder.encodeToString("secret".bytes)
+        file.text = "prop1=what\nprop2=" + encoded
+        SmartProperties props = SmartProperties.get()
+                .noBanner()
+                .secretProperty("prop2", "the password")
+                .fromFile(file)
+
+        assert props.get("prop2") == encoded
+        assert props.getProperty("prop2") == "secret"
+        assert props.snapshot().getProperty("prop2") == "secret"
+        assert props.getSecret("prop2") == "secret".toCharArray()
+        assert props.getProperty("prop2").is(props.getProperty("prop2"))
+
+        props.setProperty("prop2", "other")
+        assert props.get("prop2") == Base64.encoder.encodeToString("other".bytes)
+        assert props.getProperty("prop2") == "other"
+
+        props.wipeSecrets()
+        assert props.getProperty("prop2") == "other"
+    }
+
+    @Test
+    void "secrets are decoded in snapshots after reloading with placeholders"() {
+        file.text = "host=example.com\nurl=https://\${host}/api\npw=" + Base64.encoder.encodeToString("secret".bytes)
+        SmartProperties props = SmartProperties.get()
+                .noBanner()
+                .secretProperty("pw", "the password")
+                .fromFile(file)
+        assert props.snapshot().getProperty("pw") == "secret"
+
+        props.load(file)
+        assert props.getProperty("pw") == "secret"
+        assert props.snapshot().getProperty("pw") == "secret"
+        assert props.snapshot().getList("pw") == ["secret"]
+
+        props.load(file.text)
+        assert props.snapshot().getProperty("pw") == "secret"
+        assert props.snapshot().getProperty("url") == "https://example.com/api"
+    }
+
+    @Test
+    void "property definitions are indexed by name"() {
+        SmartProperties.PropertyDefRegistry registry = SmartProperties.get()
+                .property("prop1", "the first")
+                .secretProperty("prop2", "the password")
+                .property("prop1", "the first again")
+                .registry()
+
+        assert registry.size() == 2
+        assert registry.get("prop1").description == "the first again"
+        assert registry.isSecret("prop2")
+        assert !registry.isSecret("prop1")
+        assert !registry.isSecret("prop3")
+
+        // what is handed out, e.g. to a prompt provider, can't change the shared definitions
+        registry.get("prop2").secret = false
+        registry.defs.find { it.name == "prop2" }.secret = false
+        assert registry.isSecret("prop2")
+        assert registry.get("prop2").secret
+        assert registry.defs.find { it.name == "prop2" }.secret
+    }
+
+    @Test
+    void "typed properties are parsed once and re-parsed after a change"() {
+        file.text = """
+            pool.size=12
+            timeout=30s
+            cache.size=64MB
+            enabled=TRUE
+            mode=seconds
+            hosts=a, b,,c
+        """.stripIndent().trim()
+        SmartProperties props = SmartProperties.get()
+                .noBanner()
+                .property("pool.size", "pool size", SmartProperties.PropertyType.INT)
+                .property("timeout", "timeout", SmartProperties.PropertyType.DURATION)
+                .property("cache.size", "cache size", SmartProperties.PropertyType.SIZE)
+                .property("enabled", "enabled", SmartProperties.PropertyType.BOOLEAN)
+                .enumProperty("mode", "mode", TimeUnit)
+                .property("hosts", "hosts", SmartProperties.PropertyType.LIST)
+                .fromFile(file)
+
+        assert props.getInt("pool.size") == 12
+        assert props.getDuration("timeout") == Duration.ofSeconds(30)
+        assert props.getSize("cache.size") == 64L * 1024 * 1024
+        assert props.getBoolean("enabled")
+        assert props.getEnum("mode", TimeUnit) == TimeUnit.SECONDS
+        assert props.getList("hosts") == ["a", "b", "c"]
+        assert props.getInt("missing", 7) == 7
+
+        props.setProperty("pool.size", "13")
+        assert props.getInt("pool.size") == 13
+    }
+
+    @Test
+    void "invalid typed properties fail the load"() {
+        file.text = "pool.size=twelve"
+        try {
+            SmartProperties.get()
+                    .noBanner()
+                    .property("pool.size", "pool size", SmartProperties.PropertyType.INT)
+                    .fromFile(file)
+            assert false
+        } catch (RuntimeException e) {
+            assert e.cause.message.contains("pool.size")
+        }
+    }
+
+    @Test
+    void "snapshot sees loaded and updated properties"() {
+        SmartProperties props = new SmartProperties()
+        props.load(properties())
+        SmartProperties.PropertiesView view = props.snapshot()
+        assert view.getProperty("prop1") == "what"
+
+        props.setProperty("prop1", "changed")
+        assert view.getProperty("prop1") == "what"
+        assert props.snapshot().getProperty("prop1") == "changed"
+    }
+
+    @Test
+    void "snapshot reads don't wait for a load that is prompting"() {
+        file.text = properties()
+        java.util.concurrent.CountDownLatch prompting = new java.util.concurrent.CountDownLatch(1)
+        java.util.concurrent.CountDownLatch answer = new java.util.concurrent.CountDownLatch(1)
+        int prompts = 0
+        SmartProperties.PromptProvider provider = new SmartProperties.PromptProvider() {
+            @Override
+            List<SmartProperties.PropertyUiData> prompt(List<SmartProperties.PropertyUiData> missing, long timeoutMs) {
+                if (prompts++ > 0) {
+                    prompting.countDown()
+                    answer.await(10, TimeUnit.SECONDS)
+                }
+                missing.findAll { it.value == null }.collect { new SmartProperties.PropertyUiData(it.propertyDef, "filled") }
+            }
+
+            @Override
+            boolean persistValues() {
+                false
+            }
+        }
+        SmartProperties props = SmartProperties.get()
+                .property("extra", "asked for")
+                .promptProvider(provider)
+                .noBanner()
+                .fromFile(file)
+        props.remove("extra")
+        assert props.snapshot().getProperty("extra") == null
+
+        Thread loader = new Thread({ props.load(file) })
+        loader.start()
+        assert prompting.await(10, TimeUnit.SECONDS)
+        long start = System.nanoTime()
+        assert props.snapshot().getProperty("prop1") == "what"
+        assert props.getInt("missing", 7) == 7
+        assert props.snapshot().getProperty("extra") == null
+        assert System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1)
+
+        answer.countDown()
+        loader.join(10_000)
+        assert props.snapshot().getProperty("extra") == "filled"
+    }
+
+    @Test
+    void "reload applies only changed properties"() {
+        file.text = properties()
+        SmartProperties props = SmartProperties.get()
+                .promptForMissingProperties(false)
+                .noBanner()
+                .fromFile(file)
+
+        file.text = properties().replace("prop1=what", "prop1=changed").replace("prop4=know", "")
+        Set<String> changed = props.reload()
+
+        assert changed == ["prop1", "prop4"] as Set
+        assert props.getProperty("prop1") == "changed"
+        assert props.getProperty("prop2") == "do"
+        assert props.getProperty("prop4") == null
+
+        // only keys removed from the file are removed
+        props.setProperty("extra", "set in code")
+        file.text = properties().replace("prop2=do", "")
+        assert props.reload() == ["prop1", "prop2", "prop4"] as Set
+        assert props.getProperty("extra") == "set in code"
+        assert props.getProperty("prop2") == null
+    }
+
+    @Test
+    void "listeners get one change set per reload"() {
+        file.text = properties()
+        SmartProperties props = SmartProperties.get()
+                .promptForMissingProperties(false)
+                .noBanner()
+                .listenerExecutor({ it.run() } as Executor)
+                .fromFile(file)
+
+        List<SmartProperties.ChangeSet> received = []
+        props.addListener("prop", { received << it } as Consumer)
+        props.addListener(["prop3"], { received << it } as Consumer)
+
+        file.text = properties().replace("prop1=what", "prop1=changed").replace("prop2=do", "prop2=did")
+        props.reload()
+
+        assert received.size() == 1
+        assert received[0].keys == ["prop1", "prop2"] as Set
+        assert received[0].getOldValue("prop1") == "what"
+        assert received[0].getNewValue("prop1") == "changed"
+    }
+
+    @Test
+    void "watching the file delivers only the changed keys, with and without file events"() {
+        for (String events : ["true", "false"]) {
+            System.setProperty("smartProperties.watchEvents", events)
+            try {
+                file.text = "prop1=what\nprop2=do\n"
+                java.util.concurrent.BlockingQueue<SmartProperties.ChangeSet> received = new java.util.concurrent.LinkedBlockingQueue<SmartProperties.ChangeSet>()
+                SmartProperties props = SmartProperties.get()
+                        .promptForMissingProperties(false)
+                        .noBanner()
+                        .listenerExecutor({ it.run() } as Executor)
+                        .watch(50)
+                        .fromFile(file)
+                props.addListener("", { received.add(it) } as Consumer)
+
+                file.text = "prop1=what\nprop2=changed\nprop3=new\n"
+                SmartProperties.ChangeSet changes = received.poll(10, TimeUnit.SECONDS)
+                assert changes != null
+                assert changes.keys == ["prop2", "prop3"] as Set
+                assert changes.getOldValue("prop2") == "do"
+                assert changes.getNewValue("prop3") == "new"
+                assert props.getProperty("prop2") == "changed"
+
+                props.stopWatching()
+                file.text = "prop1=stopped\n"
+                Thread.sleep(300)
+                assert received.isEmpty()
+                assert props.getProperty("prop1") == "what"
+            } finally {
+                System.clearProperty("smartProperties.watchEvents")
+            }
+        }
+    }
+
+    @Test
+    void "a reload with an invalid value changes nothing"() {
+        file.text = "port=80\nname=a"
+        SmartProperties props = SmartProperties.get()
+                .promptForMissingProperties(false)
+                .noBanner()
+                .property("port", "the port", SmartProperties.PropertyType.INT)
+                .listenerExecutor({ it.run() } as Executor)
+                .fromFile(file)
+        List<SmartProperties.ChangeSet> received = []
+        props.addListener("", { received << it } as Consumer)
+
+        file.text = "port=eighty\nname=b"
+        try {
+            props.reload()
+            assert false
+        } catch (RuntimeException e) {
+            assert e.cause.message.contains("port")
+        }
+        assert props.getProperty("name") == "a"
+        assert props.getInt("port") == 80
+        assert received.isEmpty()
+
+        file.text = "port=81\nname=b"
+        assert props.reload() == ["port", "name"] as Set
+        assert received.size() == 1
+        assert received[0].keys == ["port", "name"] as Set
+
+        // loading is checked the same way
+        for (Closure load : [{ props.load(file) }, { props.load("port=eighty\nname=c\nextra=x") }]) {
+            file.text = "port=eighty\nname=c\nextra=x"
+            try {
+                load()
+                assert false
+            } catch (RuntimeException e) {
+                assert e.message.contains("port") || e.cause.message.contains("port")
+            }
+            assert props.getProperty("name") == "b"
+            assert props.getProperty("extra") == null
+            assert props.snapshot().getProperty("name") == "b"
+            assert props.getInt("port") == 81
+            assert received.size() == 1
+        }
+    }
+
     @Test
     @Ignore("we don't currently quite support this via the API.")
     void "serialize secret properties"() {
@@ -149,6 +666,313 @@ class SmartPropertiesTest {
         assert properties.prop1 != null
     }
 
+    @Test
+    void "prompt provider fills in missing properties"() {
+        file.text = properties()
+        SmartProperties.PromptProvider provider = new SmartProperties.PromptProvider() {
+            @Override
+            List<SmartProperties.PropertyUiData> prompt(List<SmartProperties.PropertyUiData> missing, long timeoutMs) {
+                missing.findAll { it.value == null }.collect { new SmartProperties.PropertyUiData(it.propertyDef, "filled") }
+            }
+        }
+        Properties properties = SmartProperties.get()
+                .property("prop1", "the first")
+                .secretProperty("sys.test.password", "your password")
+                .promptProvider(provider)
+                .noBanner()
+                .fromFile(file)
+
+        assert properties.getProperty("prop1") == "what"
+        assert properties.getProperty("sys.test.password") == "filled"
+        assert file.text.contains("sys.test.password=" + Base64.encoder.encodeToString("filled".bytes))
+    }
+
+    @Test
+    void "prompt for only missing or invalid properties and patch the file"() {
+        String original = "# keep this comment\r\nport=eighty\r\n\r\n! and this one\r\nname=app\r\n"
+        file.text = original
+        List<String> prompted = []
+        SmartProperties.PromptProvider provider = new SmartProperties.PromptProvider() {
+            @Override
+            List<SmartProperties.PropertyUiData> prompt(List<SmartProperties.PropertyUiData> missing, long timeoutMs) {
+                prompted.addAll(missing.collect { it.propertyDef.name })
+                missing.collect { new SmartProperties.PropertyUiData(it.propertyDef, it.propertyDef.name == "port" ? "80" : "value") }
+            }
+        }
+        SmartProperties props = SmartProperties.get()
+                .property("name", "the name")
+                .property("port", "the port", SmartProperties.PropertyType.INT)
+                .property("host", "the host")
+                .promptProvider(provider)
+                .promptMissingOnly()
+                .noBanner()
+                .fromFile(file)
+
+        assert prompted == ["port", "host"]
+        assert props.getInt("port") == 80
+        assert file.text == "# keep this comment\r\nport=80\r\n\r\n! and this one\r\nname=app\r\nhost=value\r\n"
+        assert props.getMetrics().keyCount == 3
+
+        // a new key alone is appended without rewriting the file
+        file.text = "# comment\nname=app"
+        props = SmartProperties.get()
+                .property("name", "the name")
+                .property("host", "the host")
+                .promptProvider(provider)
+                .promptMissingOnly()
+                .noBanner()
+                .fromFile(file)
+
+        assert file.text == "# comment\nname=app\nhost=value\n"
+    }
+
+    @Test
+    void "layers are applied in order of precedence"() {
+        file.text = properties()
+        File team = new File("build/sandbox/team.properties")
+        team.text = "prop1=team\nprop5=team\nprop6=team"
+        Properties defaults = new Properties()
+        defaults.setProperty("prop6", "defaults")
+        defaults.setProperty("prop7", "defaults")
+        System.setProperty("sys.test.layer", "system")
+
+        try {
+            SmartProperties properties = SmartProperties.get()
+                    .property("sys.test.layer", "from a system property")
+                    .withDefaults(defaults)
+                    .withFile(team)
+                    .withFile(new File("build/sandbox/missing.properties"))
+                    .withSystemProperties()
+                    .withArgs("--prop2=args", "positional")
+                    .promptForMissingProperties(false)
+                    .noBanner()
+                    .fromFile(file)
+
+            assert properties.getProperty("prop1") == "what"
+            assert properties.getProperty("prop2") == "args"
+            assert properties.getProperty("prop5") == "team"
+            assert properties.getProperty("prop6") == "team"
+            assert properties.getProperty("prop7") == "defaults"
+            assert properties.getProperty("sys.test.layer") == "system"
+            assert properties.snapshot().getProperty("prop2") == "args"
+
+            assert properties.whereFrom("prop1") == "file " + file.absolutePath
+            assert properties.whereFrom("prop2") == "command line"
+            assert properties.whereFrom("prop5") == "file " + team.toPath().toAbsolutePath()
+            assert properties.whereFrom("prop7") == "defaults"
+            assert properties.whereFrom("sys.test.layer") == "system property sys.test.layer"
+            assert properties.whereFrom("nothing") == null
+
+            properties.store(file)
+            assert !file.text.contains("args")
+            assert !file.text.contains("team")
+        } finally {
+            System.clearProperty("sys.test.layer")
+        }
+    }
+
+    @Test
+    void "placeholders are resolved and only dependents are recomputed"() {
+        file.text = """
+            host=example.com
+            url=https://\${host}:\${port:8080}/api
+            health=\${url}/health
+            other=\${prop1}-\${missing}
+            prop1=what
+        """.stripIndent().trim()
+        SmartProperties properties = SmartProperties.get()
+                .noBanner()
+                .fromFile(file)
+
+        assert properties.getProperty("url") == "https://example.com:8080/api"
+        assert properties.getProperty("health") == "https://example.com:8080/api/health"
+        assert properties.getProperty("other") == "what-\${missing}"
+        SmartProperties.PropertiesView before = properties.snapshot()
+
+        properties.setProperty("host", "example.org")
+        SmartProperties.PropertiesView after = properties.snapshot()
+        assert after.getProperty("health") == "https://example.org:8080/api/health"
+        assert after.getProperty("other").is(before.getProperty("other"))
+
+        properties.store(file)
+        assert file.text.contains("host=example.org")
+        assert file.text.contains("url=https://\${host}:\${port:8080}/api")
+    }
+
+    @Test
+    void "circular placeholders fail the load"() {
+        file.text = "a=\${b}\nb=x\${c}\nc=\${a}"
+        try {
+            SmartProperties.get().noBanner().fromFile(file)
+            assert false
+        } catch (RuntimeException e) {
+            assert e.cause.message.contains("Circular placeholder reference")
+        }
+    }
+
+    @Test
+    void "metrics record loads, stores, secrets and reloads"() {
+        file.text = properties() + "\nsys.test.password=" + Base64.encoder.encodeToString("secret".bytes)
+        SmartProperties props = SmartProperties.get()
+                .secretProperty("sys.test.password", "your password")
+                .jmx()
+                .noBanner()
+                .fromFile(file)
+        SmartProperties.InMemoryMetrics metrics = props.getMetrics() as SmartProperties.InMemoryMetrics
+
+        assert props.getProperty("sys.test.password") == "secret"
+        props.setProperty("prop1", "changed")
+        props.store(file)
+        file.text = properties() + "\nsys.test.password=" + Base64.encoder.encodeToString("secret".bytes)
+        props.reload()
+
+        assert metrics.loadCount == 1
+        assert metrics.bytesRead > 0
+        assert metrics.storeCount == 1
+        assert metrics.bytesWritten > 0
+        assert metrics.keyCount == 5
+        assert metrics.secretDecodeCount == 1
+        assert metrics.promptCount == 0
+        assert metrics.reloadCount == 1
+        assert metrics.reloadedKeyCount == 1
+        assert metrics.loadTimes.getPercentileNanos(99) <= metrics.loadTimes.maxNanos
+
+        def server = java.lang.management.ManagementFactory.platformMBeanServer
+        def name = new javax.management.ObjectName("com.scarlatti:type=SmartProperties,name=" + javax.management.ObjectName.quote(file.absolutePath))
+        assert server.getAttribute(name, "LoadCount") == 1L
+        metrics.unregisterMBean()
+        assert !server.isRegistered(name)
+    }
+
+    @Test
+    void "logger only builds messages for enabled levels"() {
+        List<String> messages = []
+        SmartProperties.SmartPropertiesLogger quiet = new SmartProperties.SmartPropertiesLogger() {
+            @Override
+            boolean isEnabled(SmartProperties.SmartPropertiesLogger.Level level) {
+                level >= SmartProperties.SmartPropertiesLogger.Level.WARN
+            }
+
+            @Override
+            void log(SmartProperties.SmartPropertiesLogger.Level level, String message, Throwable error) {
+                messages << level.name() + " " + message
+            }
+        }
+        SmartProperties.SmartPropertiesLogger previous = SmartProperties.getLogger()
+        SmartProperties.setLogger(quiet)
+        try {
+            file.text = properties()
+            SmartProperties.get().displayBanner().promptForMissingProperties(false).fromFile(file)
+            assert messages.isEmpty()
+
+            boolean built = false
+            SmartProperties.log(SmartProperties.SmartPropertiesLogger.Level.INFO, { built = true; "info" } as java.util.function.Supplier)
+            SmartProperties.log(SmartProperties.SmartPropertiesLogger.Level.WARN, "warning")
+            assert !built
+            assert messages == ["WARN warning"]
+        } finally {
+            SmartProperties.setLogger(previous)
+        }
+    }
+
+    @Test
+    void "shared properties are loaded once per file and definitions"() {
+        File shared = new File("build/sandbox/shared.properties")
+        shared.text = properties()
+        shared.setLastModified(1_000_000_000_000L)
+        List<SmartProperties.PropertyDef> defs = [new SmartProperties.PropertyDef("prop1", "the first", false)]
+
+        List<SmartProperties> loaded = Collections.synchronizedList([])
+        List<Thread> threads = (1..8).collect {
+            Thread.start { loaded << SmartProperties.shared(shared.toPath(), defs) }
+        }
+        threads*.join()
+        assert loaded.size() == 8
+        assert loaded.every { it.is(loaded[0]) }
+        assert SmartProperties.shared(new File("build/sandbox/../sandbox/shared.properties").toPath(), defs).is(loaded[0])
+        assert !SmartProperties.get().secretProperty("prop1", "the first").shared(shared).is(loaded[0])
+
+        shared.text = properties().replace("prop1=what", "prop1=changed")
+        shared.setLastModified(1_000_000_001_000L)
+        SmartProperties reloaded = SmartProperties.shared(shared.toPath(), defs)
+        assert !reloaded.is(loaded[0])
+        assert reloaded.getProperty("prop1") == "changed"
+    }
+
+    @Test
+    void "load properties asynchronously and in parallel"() {
+        List<File> files = (1..3).collect { i ->
+            File f = new File("build/sandbox/parallel" + i + ".properties")
+            f.text = "prop1=file" + i
+            f
+        }
+        SmartProperties.PropertiesBuilder builder = SmartProperties.get()
+                .property("prop1", "the first")
+                .noBanner()
+
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newSingleThreadExecutor()
+        try {
+            java.util.concurrent.CompletableFuture<SmartProperties> future = builder.fromFileAsync(files[0].toPath(), executor)
+            assert future.get(10, TimeUnit.SECONDS).getProperty("prop1") == "file1"
+        } finally {
+            executor.shutdown()
+        }
+
+        List<String> threads = Collections.synchronizedList([])
+        java.util.concurrent.Executor recording = { Runnable task ->
+            Thread thread = new Thread(task, "load-all-test")
+            threads.add(thread.name)
+            thread.start()
+        } as java.util.concurrent.Executor
+        List<SmartProperties> all = builder.loadAll(files*.toPath(), recording)
+        assert all*.getProperty("prop1") == ["file1", "file2", "file3"]
+        assert threads == ["load-all-test"] * 3
+
+        // a directory can't be loaded, and the error isn't wrapped in a CompletionException
+        File directory = new File("build/sandbox")
+        try {
+            builder.loadAll([files[0].toPath(), directory.toPath()], recording)
+            assert false
+        } catch (RuntimeException e) {
+            assert !(e instanceof java.util.concurrent.CompletionException)
+        }
+    }
+
+    @Test
+    void "edit properties table opens thousands of properties with shared cell components"() {
+        List<SmartProperties.PropertyUiData> data = (0..<2000).collect { i ->
+            new SmartProperties.PropertyUiData(new SmartProperties.PropertyDef("prop" + i, "description " + i, i % 10 == 0), i % 2 == 0 ? "value" + i : null)
+        }
+
+        def table = new SmartProperties.EditPropertiesTable(data)
+        javax.swing.JComponent ui = table.render()
+        javax.swing.JTextField filter = (ui.getComponent(0) as javax.swing.JPanel).getComponent(1) as javax.swing.JTextField
+        javax.swing.JScrollPane scrollPane = ui.getComponent(1) as javax.swing.JScrollPane
+        scrollPane.setSize(600, 400)
+        scrollPane.doLayout()
+        scrollPane.viewport.doLayout()
+        javax.swing.JTable jTable = scrollPane.viewport.view as javax.swing.JTable
+
+        assert jTable.model.rowCount == 2000
+        assert jTable.getCellRenderer(0, 1).is(jTable.getCellRenderer(20, 1))
+        assert !jTable.getCellRenderer(0, 1).is(jTable.getCellRenderer(1, 1))
+        // only the rows in the viewport are rendered, not all 2000
+        java.awt.Rectangle visible = scrollPane.viewport.viewRect
+        assert jTable.rowAtPoint(visible.location) == 0
+        assert jTable.rowAtPoint(new java.awt.Point(visible.@x, visible.@y + visible.@height - 1)) in 1..<100
+
+        filter.text = "PROP199"
+        assert jTable.rowCount == 11
+        filter.text = ""
+        assert jTable.rowCount == 2000
+
+        jTable.model.setValueAt("edited", 1, 1)
+        List<SmartProperties.PropertyUiData> edited = table.getProperties()
+        assert edited[1].value == "edited"
+        assert edited[2].value == "value2"
+        assert edited[3].value == ""
+    }
+
     @Test
     void "get one property"() {
         file.text = properties()